@@ -0,0 +1,311 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import at.ac.tuwien.ifs.sge.game.risk.configuration.RiskConfiguration;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * BattleOutcomeTable holds the exact outcome probabilities of Risk battles.
+ * Evaluation and playouts read win probabilities, expected losses and dice results from it
+ * instead of simulating dice.
+ *
+ * Key Features:
+ * - Loss distribution of a single dice round for every number of attacker and defender dice
+ * - Win probability and expected losses of a battle fought to the end, for up to
+ *   {@link #MAX_TROOPS} troops per side
+ * - Respects the maximum number of attacker and defender dice of a RiskConfiguration or RiskBoard
+ * - Computed once per dice configuration and shared, lookups are O(1)
+ *
+ * A battle is fought to the end if the attacker keeps rolling the most dice allowed until
+ * either the defender is wiped out or the attacker has no troops left to attack with.
+ * The round distribution is obtained by enumerating all dice rolls, the battle tables by
+ * dynamic programming over the remaining troops of both sides. Larger battles are looked up
+ * at the same troop ratio scaled down to the table size, which is a close approximation.
+ *
+ * {@link RiskBoard} does not expose its dice configuration, so it is read through private field
+ * handles looked up once, as {@link RiskZobrist} does for the turn state.
+ */
+public final class BattleOutcomeTable {
+
+    public static final int MAX_TROOPS = 128;
+    // Rounds are enumerated over all 6^(attacker + defender dice) rolls
+    private static final int MAX_DICE = 4;
+    private static final int SIDES = 6;
+
+    private static final BattleOutcomeTable[][] TABLES = new BattleOutcomeTable[MAX_DICE + 1][MAX_DICE + 1];
+    private static final VarHandle MAX_ATTACKER_DICE = boardField("maxAttackerDice");
+    private static final VarHandle MAX_DEFENDER_DICE = boardField("maxDefenderDice");
+
+    private final int maxAttackerDice;
+    private final int maxDefenderDice;
+    // [attackerDice][defenderDice][attackerLosses], cumulative over the attacker losses
+    private final double[][][] roundCumulative;
+    private final double[] winProbability;
+    private final double[] expectedAttackerLosses;
+    private final double[] expectedDefenderLosses;
+
+    private BattleOutcomeTable(int maxAttackerDice, int maxDefenderDice) {
+        this.maxAttackerDice = maxAttackerDice;
+        this.maxDefenderDice = maxDefenderDice;
+        roundCumulative = new double[maxAttackerDice + 1][maxDefenderDice + 1][];
+        for (int a = 1; a <= maxAttackerDice; a++) {
+            for (int d = 1; d <= maxDefenderDice; d++) {
+                double[] distribution = roundDistribution(a, d);
+                for (int k = 1; k < distribution.length; k++) {
+                    distribution[k] += distribution[k - 1];
+                }
+                roundCumulative[a][d] = distribution;
+            }
+        }
+
+        int size = (MAX_TROOPS + 1) * (MAX_TROOPS + 1);
+        winProbability = new double[size];
+        expectedAttackerLosses = new double[size];
+        expectedDefenderLosses = new double[size];
+        // Every round costs at least one troop, so (a, d) only depends on entries with a smaller sum
+        for (int a = 0; a <= MAX_TROOPS; a++) {
+            for (int d = 0; d <= MAX_TROOPS; d++) {
+                int index = index(a, d);
+                if (d == 0) {
+                    winProbability[index] = 1.0;
+                    continue;
+                }
+                if (a == 0) {
+                    continue;
+                }
+                double[] cumulative = roundCumulative[Math.min(a, maxAttackerDice)][Math.min(d, maxDefenderDice)];
+                int compared = cumulative.length - 1;
+                double previous = 0.0;
+                for (int attackerLosses = 0; attackerLosses <= compared; attackerLosses++) {
+                    double p = cumulative[attackerLosses] - previous;
+                    previous = cumulative[attackerLosses];
+                    int defenderLosses = compared - attackerLosses;
+                    int next = index(a - attackerLosses, d - defenderLosses);
+                    winProbability[index] += p * winProbability[next];
+                    expectedAttackerLosses[index] += p * (attackerLosses + expectedAttackerLosses[next]);
+                    expectedDefenderLosses[index] += p * (defenderLosses + expectedDefenderLosses[next]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the table of the given dice configuration, computing it on first use.
+     * @param maxAttackerDice Most dice the attacker may roll
+     * @param maxDefenderDice Most dice the defender may roll
+     * @return The shared table
+     */
+    public static BattleOutcomeTable of(int maxAttackerDice, int maxDefenderDice) {
+        if (maxAttackerDice < 1 || maxAttackerDice > MAX_DICE || maxDefenderDice < 1 || maxDefenderDice > MAX_DICE) {
+            throw new IllegalArgumentException("Dice must be between 1 and " + MAX_DICE);
+        }
+        // Tables only have final fields, so one published by another thread is seen complete
+        BattleOutcomeTable cached = TABLES[maxAttackerDice][maxDefenderDice];
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (TABLES) {
+            BattleOutcomeTable table = TABLES[maxAttackerDice][maxDefenderDice];
+            if (table == null) {
+                table = new BattleOutcomeTable(maxAttackerDice, maxDefenderDice);
+                TABLES[maxAttackerDice][maxDefenderDice] = table;
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Gets the table of the dice configuration of a game configuration.
+     * @param configuration The game configuration
+     * @return The shared table
+     */
+    public static BattleOutcomeTable of(RiskConfiguration configuration) {
+        return of(configuration.getMaxAttackerDice(), configuration.getMaxDefenderDice());
+    }
+
+    /**
+     * Gets the table of the dice configuration a board is played with.
+     * @param board The board
+     * @return The shared table
+     */
+    public static BattleOutcomeTable of(RiskBoard board) {
+        return of((int) MAX_ATTACKER_DICE.get(board), (int) MAX_DEFENDER_DICE.get(board));
+    }
+
+    /**
+     * Gets the table of the default game configuration, which the engine uses unless a map overrides it.
+     * @return The shared table
+     */
+    public static BattleOutcomeTable getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Looks up a handle to a private int field of the board.
+     * @param name Name of the field
+     * @return The handle
+     * @throws IllegalStateException if the field does not exist or cannot be accessed
+     */
+    private static VarHandle boardField(String name) {
+        try {
+            return MethodHandles.privateLookupIn(RiskBoard.class, MethodHandles.lookup())
+                    .findVarHandle(RiskBoard.class, name, int.class);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            throw new IllegalStateException("Cannot read the dice configuration without RiskBoard." + name, e);
+        }
+    }
+
+    /**
+     * Calculates the probability of each number of attacker losses in a single round.
+     * The defender loses the remaining compared dice.
+     * @param attackerDice Dice rolled by the attacker
+     * @param defenderDice Dice rolled by the defender
+     * @return Probability per number of attacker losses, from zero to min(attackerDice, defenderDice)
+     */
+    private static double[] roundDistribution(int attackerDice, int defenderDice) {
+        int compared = Math.min(attackerDice, defenderDice);
+        long[] counts = new long[compared + 1];
+        int dice = attackerDice + defenderDice;
+        int rolls = 1;
+        for (int i = 0; i < dice; i++) {
+            rolls *= SIDES;
+        }
+        int[] attacker = new int[attackerDice];
+        int[] defender = new int[defenderDice];
+        for (int roll = 0; roll < rolls; roll++) {
+            int rest = roll;
+            for (int i = 0; i < attackerDice; i++, rest /= SIDES) {
+                attacker[i] = rest % SIDES;
+            }
+            for (int i = 0; i < defenderDice; i++, rest /= SIDES) {
+                defender[i] = rest % SIDES;
+            }
+            Arrays.sort(attacker);
+            Arrays.sort(defender);
+            int attackerLosses = 0;
+            for (int i = 1; i <= compared; i++) {
+                // Ties go to the defender
+                if (attacker[attackerDice - i] <= defender[defenderDice - i]) {
+                    attackerLosses++;
+                }
+            }
+            counts[attackerLosses]++;
+        }
+        double[] distribution = new double[compared + 1];
+        for (int k = 0; k <= compared; k++) {
+            distribution[k] = (double) counts[k] / rolls;
+        }
+        return distribution;
+    }
+
+    public int getMaxAttackerDice() {
+        return maxAttackerDice;
+    }
+
+    public int getMaxDefenderDice() {
+        return maxDefenderDice;
+    }
+
+    /**
+     * Gets the probability of a number of attacker losses in a single round.
+     * @param attackerDice Dice rolled by the attacker, between one and {@link #getMaxAttackerDice()}
+     * @param defenderDice Dice rolled by the defender, between one and {@link #getMaxDefenderDice()}
+     * @param attackerLosses Attacker losses; the defender loses min(attackerDice, defenderDice) minus that
+     * @return The probability, zero if more troops are lost than dice are compared
+     */
+    public double getRoundProbability(int attackerDice, int defenderDice, int attackerLosses) {
+        double[] cumulative = roundCumulative[attackerDice][defenderDice];
+        if (attackerLosses < 0 || attackerLosses >= cumulative.length) {
+            return 0.0;
+        }
+        return cumulative[attackerLosses] - (attackerLosses > 0 ? cumulative[attackerLosses - 1] : 0.0);
+    }
+
+    /**
+     * Draws the attacker losses of a single round from the exact round distribution.
+     * Uses one random number instead of rolling and sorting every die.
+     * @param attackerDice Dice rolled by the attacker, between one and {@link #getMaxAttackerDice()}
+     * @param defenderDice Dice rolled by the defender, between one and {@link #getMaxDefenderDice()}
+     * @param random Source of randomness
+     * @return Attacker losses; the defender loses min(attackerDice, defenderDice) minus that
+     */
+    public int sampleAttackerLosses(int attackerDice, int defenderDice, Random random) {
+        double[] cumulative = roundCumulative[attackerDice][defenderDice];
+        double r = random.nextDouble();
+        int attackerLosses = 0;
+        while (attackerLosses < cumulative.length - 1 && r >= cumulative[attackerLosses]) {
+            attackerLosses++;
+        }
+        return attackerLosses;
+    }
+
+    /**
+     * Gets the probability that the attacker wipes out the defender when fighting to the end.
+     * @param attackingTroops Troops that may attack, i.e. the troops on the attacking territory minus one
+     * @param defendingTroops Troops on the defending territory
+     * @return The win probability
+     */
+    public double getWinProbability(int attackingTroops, int defendingTroops) {
+        if (defendingTroops <= 0) {
+            return 1.0;
+        }
+        if (attackingTroops <= 0) {
+            return 0.0;
+        }
+        return winProbability[scaledIndex(attackingTroops, defendingTroops)];
+    }
+
+    /**
+     * Gets the expected attacker losses of a battle fought to the end.
+     * @param attackingTroops Troops that may attack
+     * @param defendingTroops Troops on the defending territory
+     * @return The expected number of attacking troops lost
+     */
+    public double getExpectedAttackerLosses(int attackingTroops, int defendingTroops) {
+        if (attackingTroops <= 0 || defendingTroops <= 0) {
+            return 0.0;
+        }
+        return expectedAttackerLosses[scaledIndex(attackingTroops, defendingTroops)] * scale(attackingTroops, defendingTroops);
+    }
+
+    /**
+     * Gets the expected defender losses of a battle fought to the end.
+     * @param attackingTroops Troops that may attack
+     * @param defendingTroops Troops on the defending territory
+     * @return The expected number of defending troops lost
+     */
+    public double getExpectedDefenderLosses(int attackingTroops, int defendingTroops) {
+        if (attackingTroops <= 0 || defendingTroops <= 0) {
+            return 0.0;
+        }
+        return expectedDefenderLosses[scaledIndex(attackingTroops, defendingTroops)] * scale(attackingTroops, defendingTroops);
+    }
+
+    private static int index(int attackingTroops, int defendingTroops) {
+        return attackingTroops * (MAX_TROOPS + 1) + defendingTroops;
+    }
+
+    private static int scaledIndex(int attackingTroops, int defendingTroops) {
+        int larger = Math.max(attackingTroops, defendingTroops);
+        if (larger <= MAX_TROOPS) {
+            return index(attackingTroops, defendingTroops);
+        }
+        // Keep the troop ratio, both sides stay at least one
+        int a = Math.max(1, (int) Math.round((double) attackingTroops * MAX_TROOPS / larger));
+        int d = Math.max(1, (int) Math.round((double) defendingTroops * MAX_TROOPS / larger));
+        return index(a, d);
+    }
+
+    private static double scale(int attackingTroops, int defendingTroops) {
+        int larger = Math.max(attackingTroops, defendingTroops);
+        return larger <= MAX_TROOPS ? 1.0 : (double) larger / MAX_TROOPS;
+    }
+
+    private static final class DefaultHolder {
+        private static final BattleOutcomeTable DEFAULT = of(RiskConfiguration.RISK_DEFAULT_CONFIG);
+    }
+}
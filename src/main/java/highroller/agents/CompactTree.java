@@ -0,0 +1,303 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.Game;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CompactTree stores an MCTS tree as parallel primitive arrays instead of linked node objects.
+ * Nodes are addressed by their int index, the root is always node 0.
+ *
+ * Key Features:
+ * - Parent, first child, child count, plays, wins and cached score per node
+ * - Children of a node occupy consecutive indices, so they need no list of their own
+ * - Only the action leading to a node is kept, game states are replayed from the root on demand
+ * - Re-rooting copies the kept subtree into fresh arrays, dropping everything else
+ * - Pruning of the least-visited subtrees to stay within a node budget
+ *
+ * Compared to a DoubleLinkedTree of HrGameNode objects with a Game per node, a node costs
+ * a few dozen bytes and the whole tree consists of a handful of arrays, which keeps the
+ * garbage collector out of large searches. The tree is not thread-safe.
+ */
+public class CompactTree<A> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NONE = -1;
+    // Five int arrays, one float array and one reference array per slot
+    private static final int SLOT_BYTES = 6 * Integer.BYTES + 4;
+    // Retained size of the action object referenced by a node
+    private static final int ACTION_BYTES = 32;
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] childCount;
+    private int[] plays;
+    private int[] wins;
+    private float[] score;
+    private Object[] action;
+    private int size;
+
+    /**
+     * Creates a tree consisting of a root without statistics.
+     */
+    public CompactTree() {
+        this(INITIAL_CAPACITY);
+        clear();
+    }
+
+    private CompactTree(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Removes all nodes but a fresh root.
+     */
+    public void clear() {
+        size = 0;
+        add(NONE, null, Float.NaN);
+    }
+
+    /**
+     * Adds the children of a leaf at consecutive indices.
+     * @param node The leaf to expand
+     * @param actions The actions leading to the children
+     * @param scores Game state score of every child, NaN if unknown
+     */
+    public void addChildren(int node, List<A> actions, float[] scores) {
+        if (childCount[node] > 0) {
+            throw new IllegalStateException("Node " + node + " is already expanded");
+        }
+        ensureCapacity(size + actions.size());
+        firstChild[node] = size;
+        childCount[node] = actions.size();
+        for (int i = 0; i < actions.size(); i++) {
+            add(node, actions.get(i), scores[i]);
+        }
+    }
+
+    /**
+     * Reconstructs the game state of a node by replaying the actions on its path.
+     * @param node The node
+     * @param rootGame The game state of the root
+     * @return The game state of the node
+     */
+    public Game<A, ?> getGame(int node, Game<A, ?> rootGame) {
+        int depth = 0;
+        for (int n = node; n != 0; n = parent[n]) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int n = node; n != 0; n = parent[n]) {
+            path[--depth] = n;
+        }
+        Game<A, ?> game = rootGame;
+        for (int n : path) {
+            game = game.doAction(getAction(n));
+        }
+        return game;
+    }
+
+    /**
+     * Makes the given node the new root, keeping its subtree and dropping all other nodes.
+     * @param node The new root
+     */
+    public void reRoot(int node) {
+        if (node != 0) {
+            copy(node, -1);
+        }
+    }
+
+    /**
+     * Removes the least-visited subtrees until at most the given number of nodes is left.
+     * A node keeps its children if it is the root or has more plays than every pruned node;
+     * the children of the root are always kept.
+     * @param maxSize The number of nodes to keep at most
+     * @return The number of nodes removed
+     */
+    public int prune(int maxSize) {
+        if (size <= maxSize) {
+            return 0;
+        }
+        // Least plays on the path between the root and each node, the root's children are never pruned
+        int[] pathPlays = new int[size];
+        for (int node = 1; node < size; node++) {
+            int p = parent[node];
+            pathPlays[node] = p == 0 ? Integer.MAX_VALUE : Math.min(pathPlays[p], plays[p]);
+        }
+        int removed = size;
+        copy(0, pruneThreshold(pathPlays, 1, size, maxSize));
+        return removed - size;
+    }
+
+    /**
+     * Determines the play threshold at or below which nodes lose their children so that at most
+     * the given number of nodes is left.
+     * @param pathPlays Least plays on the path from below the root to the parent of every node
+     * @param from First entry to consider
+     * @param to End of the entries to consider, exclusive
+     * @param maxSize The number of nodes to keep at most, including the root
+     * @return The threshold; nodes with at most that many plays are pruned
+     */
+    static int pruneThreshold(int[] pathPlays, int from, int to, int maxSize) {
+        int keep = Math.max(maxSize - 1, 0);
+        if (to - from <= keep) {
+            return -1;
+        }
+        int[] sorted = Arrays.copyOfRange(pathPlays, from, to);
+        Arrays.sort(sorted);
+        // A node survives if its path plays exceed the threshold, so keep the largest 'keep' values
+        return sorted[sorted.length - 1 - keep];
+    }
+
+    /**
+     * Estimates the heap retained by the tree.
+     * @return Estimated size in bytes
+     */
+    public long estimateBytes() {
+        return (long) parent.length * SLOT_BYTES + (long) size * ACTION_BYTES;
+    }
+
+    /**
+     * Copies a subtree into fresh arrays and makes it the whole tree.
+     * @param node The root of the copied subtree
+     * @param pruneThreshold Nodes other than the root with at most this many plays are copied without children
+     */
+    private void copy(int node, int pruneThreshold) {
+        CompactTree<A> kept = new CompactTree<>(Math.max(INITIAL_CAPACITY, size));
+        kept.add(NONE, null, score[node]);
+        kept.plays[0] = plays[node];
+        kept.wins[0] = wins[node];
+        // Breadth-first copy: 'old' holds the original index of every copied node
+        int[] old = new int[size];
+        old[0] = node;
+        for (int next = 0; next < kept.size; next++) {
+            int original = old[next];
+            if (childCount[original] == 0 || (next != 0 && plays[original] <= pruneThreshold)) {
+                continue;
+            }
+            kept.firstChild[next] = kept.size;
+            kept.childCount[next] = childCount[original];
+            for (int c = firstChild[original]; c < firstChild[original] + childCount[original]; c++) {
+                old[kept.size] = c;
+                int copy = kept.add(next, action[c], score[c]);
+                kept.plays[copy] = plays[c];
+                kept.wins[copy] = wins[c];
+            }
+        }
+        if (kept.size + kept.size / 2 < kept.parent.length) {
+            // Give memory back after dropping a large part of the tree
+            kept.allocate(Math.max(INITIAL_CAPACITY, kept.size + kept.size / 2));
+        }
+        parent = kept.parent;
+        firstChild = kept.firstChild;
+        childCount = kept.childCount;
+        plays = kept.plays;
+        wins = kept.wins;
+        score = kept.score;
+        action = kept.action;
+        size = kept.size;
+    }
+
+    /**
+     * Finds the child reached by the given action.
+     * @param node The node to search the children of
+     * @param childAction The action leading to the child
+     * @return The child index, or -1 if there is none
+     */
+    public int findChild(int node, A childAction) {
+        for (int c = firstChild[node]; c < firstChild[node] + childCount[node]; c++) {
+            if (childAction.equals(action[c])) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return childCount[node] == 0;
+    }
+
+    public int getPlays(int node) {
+        return plays[node];
+    }
+
+    public int getWins(int node) {
+        return wins[node];
+    }
+
+    /**
+     * Adds the result of simulations to the statistics of a node.
+     * @param node The node
+     * @param wins Number of simulations that resulted in a win
+     * @param plays Number of simulations performed
+     */
+    public void addResult(int node, int wins, int plays) {
+        this.plays[node] += plays;
+        this.wins[node] += wins;
+    }
+
+    public float getScore(int node) {
+        return score[node];
+    }
+
+    @SuppressWarnings("unchecked")
+    public A getAction(int node) {
+        return (A) action[node];
+    }
+
+    private int add(int parentNode, Object nodeAction, float nodeScore) {
+        ensureCapacity(size + 1);
+        int node = size++;
+        parent[node] = parentNode;
+        firstChild[node] = NONE;
+        childCount[node] = 0;
+        plays[node] = 0;
+        wins[node] = 0;
+        score[node] = nodeScore;
+        action[node] = nodeAction;
+        return node;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > parent.length) {
+            allocate(Math.max(capacity, parent.length * 2));
+        }
+    }
+
+    private void allocate(int capacity) {
+        if (parent == null) {
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            childCount = new int[capacity];
+            plays = new int[capacity];
+            wins = new int[capacity];
+            score = new float[capacity];
+            action = new Object[capacity];
+        } else {
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            childCount = Arrays.copyOf(childCount, capacity);
+            plays = Arrays.copyOf(plays, capacity);
+            wins = Arrays.copyOf(wins, capacity);
+            score = Arrays.copyOf(score, capacity);
+            action = Arrays.copyOf(action, capacity);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package highroller.agents;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EvaluationCache remembers the game state scores of recently evaluated states.
+ * States are identified by their 64-bit hash (see {@link RiskZobrist}), so a position that
+ * recurs across playouts or subtrees is scored by {@link RiskMetricsCalculator} only once.
+ *
+ * Key Features:
+ * - Fixed capacity, allocated once, so memory stays predictable over a long game
+ * - Primitive long keys and float scores, no boxing
+ * - Clock (second-chance) eviction within the set of a key
+ * - Lock-free lookups and striped locks for updates
+ * - Hit and miss counters to judge the cache size
+ *
+ * The slots are grouped into sets of {@link #WAYS} consecutive slots, and a state can only be
+ * stored in the set its hash maps to. Sets fill up from their first slot. When all slots of a
+ * set are taken by other states, the clock hand of the set sweeps it: a slot read since it was
+ * last passed gets a second chance, the first one that was not is replaced.
+ * Stores lock one of {@link #STRIPES} stripes of sets, and lookups take no lock at all. A slot
+ * being replaced is emptied before its score and key are written, so a lookup that reads a key
+ * and finds it unchanged afterwards has read the score stored with it.
+ */
+public class EvaluationCache {
+
+    public static final int WAYS = 8;
+    public static final int STRIPES = 64;
+    private static final long EMPTY = 0L;
+
+    private final AtomicLongArray keys;
+    // Float bits of the scores
+    private final AtomicIntegerArray scores;
+    private final AtomicIntegerArray referenced;
+    // Next slot of each set its clock hand passes, only changed holding the lock of the set
+    private final byte[] hands;
+    private final Object[] locks = new Object[STRIPES];
+    private final int setMask;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an evaluation cache.
+     * @param capacity Maximum number of states, rounded up to the next power of two
+     */
+    public EvaluationCache(int capacity) {
+        if (capacity < WAYS) {
+            throw new IllegalArgumentException("Capacity must be at least " + WAYS);
+        }
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        this.keys = new AtomicLongArray(slots);
+        this.scores = new AtomicIntegerArray(slots);
+        this.referenced = new AtomicIntegerArray(slots);
+        this.hands = new byte[slots / WAYS];
+        this.setMask = slots / WAYS - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Gets the cached score of a state.
+     * @param hash Hash of the state
+     * @return The score, or NaN if the state is not in the cache
+     */
+    public float get(long hash) {
+        long key = key(hash);
+        int first = set(key) * WAYS;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            long stored = keys.get(slot);
+            if (stored == key) {
+                float score = Float.intBitsToFloat(scores.get(slot));
+                if (keys.get(slot) != key) {
+                    // Replaced by another state while reading
+                    break;
+                }
+                if (referenced.get(slot) == 0) {
+                    referenced.set(slot, 1);
+                }
+                hits.increment();
+                return score;
+            }
+            if (stored == EMPTY) {
+                break;
+            }
+        }
+        misses.increment();
+        return Float.NaN;
+    }
+
+    /**
+     * Stores the score of a state, evicting a state of the same set if it is full.
+     * @param hash Hash of the state
+     * @param score Game state score of the state
+     */
+    public void put(long hash, float score) {
+        long key = key(hash);
+        int set = set(key);
+        int first = set * WAYS;
+        synchronized (locks[set & (STRIPES - 1)]) {
+            for (int slot = first; slot < first + WAYS; slot++) {
+                long stored = keys.get(slot);
+                if (stored == key) {
+                    scores.set(slot, Float.floatToIntBits(score));
+                    return;
+                }
+                if (stored == EMPTY) {
+                    write(slot, key, score);
+                    size.incrementAndGet();
+                    return;
+                }
+            }
+            // Set full: sweep it from the hand, clearing reference bits, until one was not read
+            int slot;
+            do {
+                slot = first + hands[set];
+                hands[set] = (byte) ((hands[set] + 1) % WAYS);
+                if (referenced.get(slot) == 0) {
+                    break;
+                }
+                referenced.set(slot, 0);
+            } while (true);
+            keys.set(slot, EMPTY);
+            write(slot, key, score);
+        }
+    }
+
+    /**
+     * Gets the number of states stored.
+     * @return Number of occupied slots
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Gets the number of lookups that found their state.
+     * @return Number of hits since creation or the last {@link #clear()}
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that did not find their state.
+     * @return Number of misses since creation or the last {@link #clear()}
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all states and resets the counters. Must not be called while other threads use the cache.
+     */
+    public void clear() {
+        for (int slot = 0; slot < keys.length(); slot++) {
+            keys.set(slot, EMPTY);
+            referenced.set(slot, 0);
+        }
+        Arrays.fill(hands, (byte) 0);
+        size.set(0);
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Writes the score and then the key of an empty slot. Must be called holding the lock of its stripe.
+     */
+    private void write(int slot, long key, float score) {
+        scores.set(slot, Float.floatToIntBits(score));
+        referenced.set(slot, 0);
+        keys.set(slot, key);
+    }
+
+    private static long key(long hash) {
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private int set(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & setMask;
+    }
+}
@@ -3,7 +3,16 @@ package highroller.agents;
 import at.ac.tuwien.ifs.sge.engine.Logger;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 import at.ac.tuwien.ifs.sge.agent.*;
 import at.ac.tuwien.ifs.sge.game.Game;
@@ -31,12 +40,91 @@ import at.ac.tuwien.ifs.sge.util.tree.Tree;
  * - When ahead: Focuses on aggressive attacks to finish the game
  * - When behind: Prioritizes growth and scaling
  * - When balanced: Uses a mixed strategy
+ *
+ * Search Modes:
+ * - SEQUENTIAL: A single tree searched on the calling thread
+ * - ROOT_PARALLEL: Independent trees searched concurrently, root statistics merged before the final pick
+ * - TREE_PARALLEL: One shared tree descended by several threads, kept apart by virtual loss
+ *
+ * Pondering:
+ * If enabled, the search continues on a single background thread from the state after our own
+ * move while opponents are thinking. When it is our turn again, the tree is re-rooted onto the
+ * subtree of the moves actually played, so the work done during the opponents' turns is kept.
+ * Pondering stops early once the tree reaches its node or memory budget, or a quarter of the
+ * heap if no memory budget is set.
+ *
+ * Time Management:
+ * With a {@link TimeManager}, each decision only gets the share of the computation time its
+ * phase and number of options call for, forced moves are played without searching, and the
+ * search stops early once the stop rule considers the most visited move final. The time each
+ * decision actually used is reported back, so the time manager can bank what an early stop saved.
+ *
+ * Macro Reinforcements:
+ * If enabled, the search picks a whole placement of reinforcements at once. Its first action is
+ * returned right away, the rest are queued and returned by the following calls without searching,
+ * as long as they are still valid.
  */
 public class HighRoller<G extends Game<A, ?>, A> extends AbstractGameAgent<G, A> {
     private static int INSTANCE_NR_COUNTER = 1;
     private final int instanceNr;
     private static double DEFAULT_EXPLOITATION_CONSTANT = Math.sqrt(2);
+    private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int VIRTUAL_LOSS = 3;
+    private static final int DEFAULT_EVALUATION_CACHE_SIZE = 1 << 16;
+    // How often the root statistics are checked for a decided search
+    private static final long DECIDED_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    // Ends the searches of all instances when their time is up or their move is decided
+    private static final ScheduledExecutorService SEARCH_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HighRoller-search-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Share of the heap a pondered tree may fill if no memory budget is set
+    private static final double PONDER_HEAP_SHARE = 0.25;
+    private final double exploitationConstant;
+    private final int threadCount;
+    private int leafParallelism = 1;
+    private int transpositionTableSize = 0;
+    private boolean compactTree = false;
+    private boolean actionReplay = false;
+    private int nodeBudget = 0;
+    private long memoryBudget = 0;
+    private boolean mutablePlayouts = false;
+    private boolean collapsedChanceNodes = false;
+    private double wideningCoefficient = 0;
+    private double wideningExponent = 0.5;
+    private int macroFrontierSize = 0;
+    private double raveEquivalence = 0;
+    private boolean atomicIterations = false;
+    private final Deque<A> plannedActions = new ArrayDeque<>();
+    private int evaluationCacheSize = DEFAULT_EVALUATION_CACHE_SIZE;
+    private EvaluationCache evaluationCache;
+    private TimeManager timeManager;
+    private long budget;
+    // Statistics of the root edges when the search of the current decision started
+    private Map<List<A>, HrGameNode<A>> searchStart = Collections.emptyMap();
+    // Possible actions of the state of the current decision
+    private int searchRootActions;
+    private boolean ponderingEnabled = false;
+    private long ponderMemoryLimit;
+    private volatile boolean pondering;
+    private Thread ponderThread;
+    private SearchMode searchMode;
     private MCTSAgent<G, A> mctsAgent;
+    private List<MCTSAgent<G, A>> mctsAgents;
+    private ExecutorService searchExecutor;
+
+    /**
+     * Determines how the MCTS iterations of a single decision are distributed over threads.
+     */
+    public enum SearchMode {
+        /** One tree, searched on the thread calling computeNextAction. */
+        SEQUENTIAL,
+        /** One independent tree per thread, root children merged by action before the final pick. */
+        ROOT_PARALLEL,
+        /** One tree shared by all threads, which apply virtual loss during selection. */
+        TREE_PARALLEL
+    }
 
     /**
      * Default constructor for HighRoller agent.
@@ -60,73 +148,595 @@ public class HighRoller<G extends Game<A, ?>, A> extends AbstractGameAgent<G, A>
      * @param log Logger instance for debugging and tracing
      */
     public HighRoller(double exploitationConstant, Logger log) {
+        this(exploitationConstant, DEFAULT_THREAD_COUNT, log);
+    }
+
+    /**
+     * Creates a HighRoller agent with custom exploitation constant, thread count and logger.
+     * A thread count above one enables root-parallel search.
+     * @param exploitationConstant The exploration-exploitation balance parameter
+     * @param threadCount Number of threads searching concurrently
+     * @param log Logger instance for debugging and tracing
+     */
+    public HighRoller(double exploitationConstant, int threadCount, Logger log) {
+        this(exploitationConstant, threadCount, threadCount > 1 ? SearchMode.ROOT_PARALLEL : SearchMode.SEQUENTIAL, log);
+    }
+
+    /**
+     * Creates a HighRoller agent with custom exploitation constant, thread count, search mode and logger.
+     * @param exploitationConstant The exploration-exploitation balance parameter
+     * @param threadCount Number of threads searching concurrently
+     * @param searchMode How the search is distributed over the threads
+     * @param log Logger instance for debugging and tracing
+     */
+    public HighRoller(double exploitationConstant, int threadCount, SearchMode searchMode, Logger log) {
         super(log);
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.exploitationConstant = exploitationConstant;
+        this.threadCount = searchMode == SearchMode.SEQUENTIAL ? 1 : threadCount;
+        this.searchMode = searchMode;
         instanceNr = INSTANCE_NR_COUNTER++;
     }
 
+    /**
+     * Sets the number of playouts run concurrently from every selected leaf.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param leafParallelism Number of playouts per iteration, one disables leaf-parallel search
+     */
+    public void setLeafParallelism(int leafParallelism) {
+        if (leafParallelism < 1) {
+            throw new IllegalArgumentException("Leaf parallelism must be positive");
+        }
+        this.leafParallelism = leafParallelism;
+    }
+
+    /**
+     * Sets the capacity of the transposition table of every search tree.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param transpositionTableSize Maximum number of pooled states per tree, zero disables the table
+     */
+    public void setTranspositionTableSize(int transpositionTableSize) {
+        if (transpositionTableSize < 0) {
+            throw new IllegalArgumentException("Transposition table size must be non-negative");
+        }
+        this.transpositionTableSize = transpositionTableSize;
+    }
+
+    /**
+     * Stores the search trees in primitive arrays instead of linked HrGameNode objects.
+     * The compact tree does not support {@link SearchMode#TREE_PARALLEL}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param compactTree true to use {@link CompactTree}, false for the object tree
+     */
+    public void setCompactTree(boolean compactTree) {
+        this.compactTree = compactTree;
+    }
+
+    /**
+     * Keeps game states only at the roots of the object trees; all other nodes store the action
+     * leading to them and are replayed on demand. Has no effect on the compact tree, which always replays.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param actionReplay true to use action-replay nodes
+     */
+    public void setActionReplay(boolean actionReplay) {
+        this.actionReplay = actionReplay;
+    }
+
+    /**
+     * Limits the number of nodes of every search tree, see {@link MCTSAgent#setNodeBudget(int)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param nodeBudget Maximum number of nodes per tree, zero for no limit
+     */
+    public void setNodeBudget(int nodeBudget) {
+        if (nodeBudget < 0) {
+            throw new IllegalArgumentException("Node budget must be non-negative");
+        }
+        this.nodeBudget = nodeBudget;
+    }
+
+    /**
+     * Limits the estimated heap retained by every search tree, see {@link MCTSAgent#setMemoryBudget(long)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param memoryBudget Maximum estimated bytes per tree, zero for no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must be non-negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Runs playouts on a mutable array-backed board instead of the engine, see {@link MCTSAgent#setMutablePlayouts(boolean)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param mutablePlayouts true to simulate on a {@link RiskPlayoutBoard}
+     */
+    public void setMutablePlayouts(boolean mutablePlayouts) {
+        this.mutablePlayouts = mutablePlayouts;
+    }
+
+    /**
+     * Creates chance node children lazily per sampled outcome, see {@link MCTSAgent#setCollapsedChanceNodes(boolean)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param collapsedChanceNodes true to sample chance outcomes in one step during selection
+     */
+    public void setCollapsedChanceNodes(boolean collapsedChanceNodes) {
+        this.collapsedChanceNodes = collapsedChanceNodes;
+    }
+
+    /**
+     * Expands wide Risk nodes progressively, see {@link MCTSAgent#setProgressiveWidening(double, double)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param coefficient Children of an unvisited node, zero disables widening
+     * @param exponent Growth of the number of children with the plays, between 0 and 1
+     */
+    public void setProgressiveWidening(double coefficient, double exponent) {
+        if (coefficient < 0) {
+            throw new IllegalArgumentException("Widening coefficient must be non-negative");
+        }
+        if (exponent < 0 || exponent > 1) {
+            throw new IllegalArgumentException("Widening exponent must be between 0 and 1");
+        }
+        this.wideningCoefficient = coefficient;
+        this.wideningExponent = exponent;
+    }
+
+    /**
+     * Searches reinforcement placements as macros, see {@link MCTSAgent#setMacroReinforcements(int)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param frontierSize Number of best frontier territories the macros are built from, zero disables macros
+     */
+    public void setMacroReinforcements(int frontierSize) {
+        if (frontierSize < 0) {
+            throw new IllegalArgumentException("Frontier size must be non-negative");
+        }
+        this.macroFrontierSize = frontierSize;
+    }
+
+    /**
+     * Blends all-moves-as-first statistics into the UCT values, see {@link MCTSAgent#setRave(double)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param equivalence Plays at which both estimates weigh about the same, zero disables RAVE
+     */
+    public void setRave(double equivalence) {
+        if (equivalence < 0) {
+            throw new IllegalArgumentException("RAVE equivalence must be non-negative");
+        }
+        this.raveEquivalence = equivalence;
+    }
+
+    /**
+     * Discards iterations that run out of time instead of counting them as losses, see
+     * {@link MCTSAgent#setAtomicIterations(boolean)}.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param atomicIterations true to discard iterations that run out of time
+     */
+    public void setAtomicIterations(boolean atomicIterations) {
+        this.atomicIterations = atomicIterations;
+    }
+
+    /**
+     * Sets the time manager that allots the computation time of every decision.
+     * @param timeManager The time manager, or null to always search for the full computation time
+     */
+    public void setTimeManager(TimeManager timeManager) {
+        this.timeManager = timeManager;
+    }
+
+    public TimeManager getTimeManager() {
+        return timeManager;
+    }
+
+    /**
+     * Sets the capacity of the evaluation cache shared by all search trees.
+     * Takes effect with the next {@link #setUp(int, int)}.
+     * @param evaluationCacheSize Maximum number of cached game state scores, zero disables the cache
+     */
+    public void setEvaluationCacheSize(int evaluationCacheSize) {
+        if (evaluationCacheSize < 0) {
+            throw new IllegalArgumentException("Evaluation cache size must be non-negative");
+        }
+        this.evaluationCacheSize = evaluationCacheSize;
+    }
+
+    /**
+     * Enables or disables searching during the opponents' turns. Disabled by default, since it
+     * keeps a core busy and the tree growing while the opponents think.
+     * @param ponderingEnabled true to keep searching while it is not our turn
+     */
+    public void setPondering(boolean ponderingEnabled) {
+        this.ponderingEnabled = ponderingEnabled;
+    }
+
     @Override
     public void setUp(int numberOfPlayers, int playerId) {
         super.setUp(numberOfPlayers, playerId);
-        mctsAgent = new MCTSAgent<>(DEFAULT_EXPLOITATION_CONSTANT, playerId);
-        mctsAgent.setUp();
+        if (compactTree && searchMode == SearchMode.TREE_PARALLEL) {
+            throw new IllegalStateException("The compact tree does not support tree-parallel search");
+        }
+        // Scores only depend on the state, so all trees of this player share one cache
+        evaluationCache = evaluationCacheSize > 0 ? new EvaluationCache(evaluationCacheSize) : null;
+        plannedActions.clear();
+        int trees = searchMode == SearchMode.ROOT_PARALLEL ? threadCount : 1;
+        mctsAgents = new ArrayList<>(trees);
+        for (int i = 0; i < trees; i++) {
+            MCTSAgent<G, A> agent = new MCTSAgent<>(exploitationConstant, playerId);
+            agent.setLeafParallelism(leafParallelism);
+            agent.setTranspositionTableSize(transpositionTableSize);
+            agent.setCompactTree(compactTree);
+            agent.setActionReplay(actionReplay);
+            agent.setNodeBudget(nodeBudget);
+            agent.setMemoryBudget(memoryBudget);
+            agent.setMutablePlayouts(mutablePlayouts);
+            agent.setEvaluationCache(evaluationCache);
+            agent.setCollapsedChanceNodes(collapsedChanceNodes);
+            agent.setProgressiveWidening(wideningCoefficient, wideningExponent);
+            agent.setMacroReinforcements(macroFrontierSize);
+            agent.setRave(raveEquivalence);
+            agent.setAtomicIterations(atomicIterations);
+            agent.setUp();
+            mctsAgents.add(agent);
+        }
+        mctsAgent = mctsAgents.get(0);
+        if (searchMode == SearchMode.TREE_PARALLEL) {
+            mctsAgent.setVirtualLoss(VIRTUAL_LOSS);
+        }
+        if (threadCount > 1) {
+            searchExecutor = Executors.newFixedThreadPool(threadCount, runnable -> {
+                Thread thread = new Thread(runnable, this + "-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     @Override
     public A computeNextAction(G game, long computationTime, TimeUnit timeUnit) {
         //log.debug("computeNextAction");
-        super.setTimers(computationTime, timeUnit);
-        mctsAgent.setTimers(computationTime, timeUnit);
+        stopPondering();
+        A action = nextPlannedAction(game);
+        if (action == null) {
+            List<A> actions = searchNextAction(game, computationTime, timeUnit);
+            if (timeManager != null) {
+                timeManager.record(budget, nanosElapsed());
+            }
+            action = actions.get(0);
+            plannedActions.addAll(actions.subList(1, actions.size()));
+        }
+        // The tree stays at the state before a macro until all of its actions were played
+        if (ponderingEnabled && plannedActions.isEmpty()) {
+            // Pondering continues from the state after our move
+            Game<A, ?> next = game.doAction(action);
+            for (MCTSAgent<G, A> agent : mctsAgents) {
+                agent.advanceRoot(next);
+            }
+        }
+        return action;
+    }
+
+    /**
+     * Takes the next action of the macro chosen by an earlier search.
+     * @param game The current game state
+     * @return The planned action, or null if there is none or it is no longer valid
+     */
+    private A nextPlannedAction(G game) {
+        A action = plannedActions.poll();
+        if (action != null && !game.isValidAction(action)) {
+            log.debug("Planned action is no longer valid, searching again");
+            plannedActions.clear();
+            return null;
+        }
+        return action;
+    }
 
-        log.tra_("Searching for root of tree");
-        boolean foundRoot = Util.findRoot(mctsAgent.getTree(), game);
+    /**
+     * Searches the best action for the given game state within the time budget.
+     * @param game The current game state
+     * @param computationTime Maximum time allowed for computation
+     * @param timeUnit Unit of time for computation limit
+     * @return The actions of the best edge found, a single action unless it is a macro
+     */
+    private List<A> searchNextAction(G game, long computationTime, TimeUnit timeUnit) {
+        // The safety buffer comes off the computation time once; allotments are shares of the rest
+        long searchTime = Math.max(0, timeUnit.toNanos(computationTime) - MCTSAgent.TIME_BUFFER);
+        boolean forced = timeManager != null && game.getPossibleActions().size() <= 1;
+        budget = timeManager != null ? timeManager.allot(game, searchTime, TimeUnit.NANOSECONDS) : searchTime;
+        super.setTimers(budget, TimeUnit.NANOSECONDS);
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            agent.setSearchTime(budget, TimeUnit.NANOSECONDS);
+        }
+
+        log.tra_("Advancing root of tree");
+        boolean foundRoot = true;
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            foundRoot &= agent.advanceRoot(game);
+        }
         if (foundRoot) {
             log._trace(", done.");
         } else {
             log._trace(", failed.");
         }
 
-        log.tra_("Check if best move will eventually end game: ");
-        if (mctsAgent.sortPromisingCandidates(mctsAgent.getTree(), (o1, o2) -> gameComparator.compare(o1.getGame(), o2.getGame()))) {
+        if (forced) {
+            log.debug("Only one possible action, playing it without searching");
+            return Collections.singletonList(game.getPossibleActions().iterator().next());
+        }
+
+        log.tra_("Check if a move is proven to win: ");
+        List<A> provenWin = provenWinningActions();
+        if (provenWin != null) {
             log._trace("Yes");
-            return Collections.max(mctsAgent.getTree().getChildren(), mctsAgent.getGameTreeMoveComparator()).getNode().getGame()
-                    .getPreviousAction();
+            return provenWin;
         }
         log._trace("No");
 
+        if (timeManager != null && !mctsAgent.isCompactTree()) {
+            // Plays reused from earlier searches or pondering did not happen within this decision's time
+            searchStart = new HashMap<>();
+            for (HrGameNode<A> node : mergeRootChildren()) {
+                searchStart.put(node.getActions(), node);
+            }
+        }
+        searchRootActions = game.getPossibleActions().size();
+        searchUntilStopped();
 
-        while (!shouldStopComputation()) {
-            Tree<HrGameNode<A>> currentTree = mctsAgent.getTree();
-            currentTree = mctsAgent.selection(currentTree);
-            mctsAgent.expansion(currentTree);
-            boolean won = mctsAgent.simulation(currentTree, 128, 0.5);
-            mctsAgent.backpropagation(currentTree, won);
+        provenWin = provenWinningActions();
+        if (provenWin != null) {
+            log.debug("Search proved a winning move");
+            return provenWin;
+        }
+
+        Collection<HrGameNode<A>> rootChildren = mergeRootChildren();
+        int plays = 0;
+        int wins = 0;
+        long nodes = 0;
+        long bytes = 0;
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            plays += agent.getRootPlays();
+            wins += agent.getRootWins();
+            nodes += agent.getNodeCount();
+            bytes += agent.getEstimatedBytes();
+        }
+        log.tracef("Search tree(s) hold %d nodes in about %d KiB", nodes, bytes / 1024);
+        if (evaluationCache != null) {
+            log.tracef("Evaluation cache holds %d scores, %d hits and %d misses so far",
+                    evaluationCache.size(), evaluationCache.getHits(), evaluationCache.getMisses());
         }
 
         long elapsedTime = Math.max(1, System.nanoTime() - START_TIME);
         log._deb_("\r");
-        log.debf_("MCTS with %d simulations at confidence %.1f%%", mctsAgent.getTree().getNode().getPlays(),
-                Util.percentage(mctsAgent.getTree().getNode().getWins(), mctsAgent.getTree().getNode().getPlays()));
+        log.debf_("MCTS with %d simulations on %d tree(s) at confidence %.1f%%", plays, mctsAgents.size(),
+                Util.percentage(wins, plays));
         log._debugf(
                 ", done in %s with %s/simulation.",
                 Util.convertUnitToReadableString(elapsedTime,
                         TimeUnit.NANOSECONDS, timeUnit),
-                Util.convertUnitToReadableString(elapsedTime / Math.max(1, mctsAgent.getTree().getNode().getPlays()),
+                Util.convertUnitToReadableString(elapsedTime / Math.max(1, plays),
                         TimeUnit.NANOSECONDS,
                         TimeUnit.NANOSECONDS));
 
-        if (mctsAgent.getTree().isLeaf()) {
+        if (rootChildren.isEmpty()) {
             log._debug(". Could not find a move, choosing the next best greedy option.");
-            return Collections.max(game.getPossibleActions(),
-                    (o1, o2) -> gameComparator.compare(game.doAction(o1), game.doAction(o2)));
+            return Collections.singletonList(Collections.max(game.getPossibleActions(),
+                    (o1, o2) -> gameComparator.compare(game.doAction(o1), game.doAction(o2))));
         }
 
-        return Collections.max(mctsAgent.getTree().getChildren(), mctsAgent.getGameTreeMoveComparator()).getNode().getGame()
-                .getPreviousAction();
+        return Collections.max(rootChildren, mctsAgent.getGameNodeMoveComparator()).getActions();
+    }
+
+    /**
+     * Searches the current decision until its time is up or the time manager considers it decided.
+     * Both are determined on a timer thread, which raises a flag the search threads read before
+     * every iteration, so they neither read the clock nor merge the root statistics themselves.
+     * The stop rule is checked every {@link #DECIDED_CHECK_INTERVAL}. Compact trees are not read
+     * while another thread searches them, so their searches always use the full budget.
+     */
+    private void searchUntilStopped() {
+        AtomicBoolean stop = new AtomicBoolean(nanosLeft() <= 0);
+        ScheduledFuture<?> deadline = SEARCH_TIMER.schedule(() -> stop.set(true), nanosLeft(), TimeUnit.NANOSECONDS);
+        ScheduledFuture<?> decidedCheck = null;
+        if (timeManager != null && !mctsAgent.isCompactTree()) {
+            decidedCheck = SEARCH_TIMER.scheduleWithFixedDelay(() -> {
+                if (!stop.get() && isDecided()) {
+                    stop.set(true);
+                }
+            }, DECIDED_CHECK_INTERVAL, DECIDED_CHECK_INTERVAL, TimeUnit.NANOSECONDS);
+        }
+        try {
+            search(stop::get);
+        } finally {
+            deadline.cancel(false);
+            if (decidedCheck != null) {
+                decidedCheck.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the stop rule of the time manager considers the most visited root move final.
+     * Runs on the timer thread while the search goes on.
+     * @return true if the time manager considers the search decided
+     */
+    private boolean isDecided() {
+        Collection<HrGameNode<A>> rootChildren = mergeRootChildren();
+        if (!timeManager.isDecided(rootChildren, rootEdges(rootChildren), searchStart, nanosElapsed(), nanosLeft())) {
+            return false;
+        }
+        log.debugf("Search decided after %s", Util.convertUnitToReadableString(nanosElapsed(),
+                TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    /**
+     * Gets the number of children the root has once fully expanded. Macro placements are
+     * published all at once, so a root expanded into macros already has all of them.
+     * @param rootChildren The merged root children
+     * @return The number of root edges
+     */
+    private int rootEdges(Collection<HrGameNode<A>> rootChildren) {
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            if (agent.getTree().getNode().hasMacroChildren()) {
+                return rootChildren.size();
+            }
+        }
+        return searchRootActions;
+    }
+
+    /**
+     * Gets the actions of a root child that any of the trees proved to be won.
+     * @return The actions, or null if no tree proved a winning move
+     */
+    private List<A> provenWinningActions() {
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            List<A> actions = agent.getProvenWinningActions();
+            if (actions != null) {
+                return actions;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs MCTS iterations according to the search mode until told to stop.
+     * @param shouldStop Condition checked before every iteration
+     */
+    private void search(BooleanSupplier shouldStop) {
+        if (searchExecutor == null) {
+            search(mctsAgent, shouldStop);
+        } else {
+            searchInParallel(shouldStop);
+        }
+    }
+
+    /**
+     * Runs MCTS iterations on the tree of the given agent until told to stop or its root is proven.
+     * @param agent Agent whose tree is searched
+     * @param shouldStop Condition checked before every iteration
+     */
+    private void search(MCTSAgent<G, A> agent, BooleanSupplier shouldStop) {
+        while (!shouldStop.getAsBoolean() && !agent.isSolved()) {
+            if (agent.isCompactTree()) {
+                agent.compactIteration();
+                continue;
+            }
+            Tree<HrGameNode<A>> currentTree = agent.getTree();
+            currentTree = agent.selection(currentTree);
+            agent.expansion(currentTree);
+            if (agent.getLeafParallelism() > 1) {
+                int wins = agent.simulations(currentTree);
+                agent.backpropagation(currentTree, wins, agent.getLeafParallelism());
+            } else {
+                boolean won = agent.simulation(currentTree, 128, 0.5);
+                agent.backpropagation(currentTree, won);
+            }
+        }
+    }
+
+    /**
+     * Searches on every thread and waits until all of them ran out of time.
+     * Root-parallel threads each search their own tree, tree-parallel threads share one.
+     * @param shouldStop Condition checked before every iteration
+     */
+    private void searchInParallel(BooleanSupplier shouldStop) {
+        List<Callable<Void>> searches = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            MCTSAgent<G, A> agent = mctsAgents.get(i % mctsAgents.size());
+            searches.add(() -> {
+                search(agent, shouldStop);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : searchExecutor.invokeAll(searches)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.err(e.getCause());
+        }
+    }
+
+    /**
+     * Merges the root children of all trees by their actions, summing up plays and wins.
+     * @return One node per root edge carrying the combined statistics
+     */
+    private Collection<HrGameNode<A>> mergeRootChildren() {
+        Map<List<A>, HrGameNode<A>> merged = new LinkedHashMap<>();
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            for (HrGameNode<A> node : agent.getRootChildren()) {
+                HrGameNode<A> total = merged.computeIfAbsent(node.getActions(), actions -> {
+                    HrGameNode<A> edge = new HrGameNode<>(node.getAction(), node.getCurrentPlayer(), node.getGameStateScore());
+                    if (actions.size() > 1) {
+                        edge.setMacroActions(actions);
+                    }
+                    return edge;
+                });
+                total.setPlays(total.getPlays() + node.getPlays());
+                total.setWins(total.getWins() + node.getWins());
+            }
+        }
+        return merged.values();
+    }
+
+    /**
+     * Starts searching the first tree on a single background thread until {@link #stopPondering()}
+     * is called or the tree reaches its budget.
+     */
+    private void startPondering() {
+        Game<A, ?> root = mctsAgent.getTree().getNode().getGame();
+        if (!ponderingEnabled || ponderThread != null || root == null || root.isGameOver()) {
+            return;
+        }
+        mctsAgent.clearTimers();
+        ponderMemoryLimit = memoryBudget > 0 ? memoryBudget
+                : (long) (Runtime.getRuntime().maxMemory() * PONDER_HEAP_SHARE);
+        pondering = true;
+        ponderThread = new Thread(() -> search(mctsAgent, this::shouldStopPondering), this + "-ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
+
+    /**
+     * Checks whether pondering was stopped or the pondered tree is full.
+     * @return true if the background search should end
+     */
+    private boolean shouldStopPondering() {
+        return !pondering
+                || (nodeBudget > 0 && mctsAgent.getNodeCount() >= nodeBudget)
+                || mctsAgent.getEstimatedBytes() >= ponderMemoryLimit;
+    }
+
+    /**
+     * Stops the background search and waits until its last iteration finished.
+     */
+    private void stopPondering() {
+        if (ponderThread == null) {
+            return;
+        }
+        pondering = false;
+        try {
+            ponderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ponderThread = null;
+        log.debugf("Pondered up to %d simulations at the root", mctsAgent.getRootPlays());
     }
 
     @Override
     public void tearDown() {
         log.debug("tearDown");
+        stopPondering();
+        for (MCTSAgent<G, A> agent : mctsAgents) {
+            agent.tearDown();
+        }
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
+            searchExecutor = null;
+        }
         HighRoller.super.tearDown();
     }
 
@@ -134,17 +744,20 @@ public class HighRoller<G extends Game<A, ?>, A> extends AbstractGameAgent<G, A>
     public void ponderStart() {
         log.debug("ponderStart");
         HighRoller.super.ponderStart();
+        startPondering();
     }
 
     @Override
     public void ponderStop() {
         log.debug("ponderStop");
+        stopPondering();
         HighRoller.super.ponderStop();
     }
 
     @Override
     public void destroy() {
         log.debug("destroy");
+        stopPondering();
         HighRoller.super.destroy();
     }
 
@@ -1,23 +1,40 @@
 package highroller.agents;
 
 import at.ac.tuwien.ifs.sge.game.Game;
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
 import at.ac.tuwien.ifs.sge.util.node.GameNode;
-import java.util.Objects;
+import at.ac.tuwien.ifs.sge.util.tree.Tree;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * HrGameNode represents a node in the MCTS game tree for the HighRoller agent.
  * It extends the basic GameNode with additional functionality specific to Risk game evaluation.
  * 
  * Key Features:
- * - Game state storage
+ * - Game state storage, or only the action edge for nodes whose state is replayed
  * - Win/loss statistics tracking
+ * - All-moves-as-first (AMAF) statistics for RAVE
+ * - Proven game-theoretic value for MCTS-Solver
  * - Game state score caching
  * - Efficient state comparison
+ * - Thread-safe statistics for tree-parallel search
  * 
  * The node maintains:
- * - Current game state
+ * - Current game state, or the action leading to it and the player to move
  * - Number of wins and plays
+ * - Number of wins and plays of simulations that played its action later on, for RAVE
+ * - Pending virtual loss of threads currently descending through it
  * - Cached game state score
+ * - Zobrist hash of the game state, maintained incrementally during expansion
+ * - For chance nodes, the children of the outcomes sampled so far, keyed by outcome
+ * - Under progressive widening, the actions not yet expanded, best prior first
+ * - For macro edges, the whole sequence of actions leading to it from its parent
+ * - Whether it is proven to be won or lost by the searching player
  * 
  * The game state score is used to:
  * - Evaluate move quality
@@ -27,10 +44,51 @@ import java.util.Objects;
  */
 public class HrGameNode<A> implements GameNode<A> {
 
-    private Game<A, ?> game;
-    private int wins;
-    private int plays;
-    private double gameStateScore;
+    public static final int UNPROVEN = 0;
+    public static final int PROVEN_WIN = 1;
+    public static final int PROVEN_LOSS = -1;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> WINS =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "wins");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> PLAYS =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "plays");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> RAVE_WINS =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "raveWins");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> RAVE_PLAYS =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "ravePlays");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> VIRTUAL_LOSS =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "virtualLoss");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> EXPANDING =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "expanding");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<HrGameNode> SUBTREE_SIZE =
+            AtomicIntegerFieldUpdater.newUpdater(HrGameNode.class, "subtreeSize");
+
+    private volatile Game<A, ?> game;
+    private final A action;
+    private final int currentPlayer;
+    private volatile int wins;
+    private volatile int plays;
+    private volatile int raveWins;
+    private volatile int ravePlays;
+    private volatile int virtualLoss;
+    private volatile int expanding;
+    private volatile int subtreeSize = 1;
+    private volatile double gameStateScore;
+    private volatile long hash;
+    private volatile Map<A, Tree<HrGameNode<A>>> outcomes;
+    private volatile List<A> pendingActions;
+    private volatile int pendingIndex;
+    private volatile List<A> macroActions;
+    private volatile boolean macroChildren;
+    private volatile boolean fullyExpanded;
+    private volatile int provenValue = UNPROVEN;
 
     public HrGameNode() {
         this(null);
@@ -46,17 +104,114 @@ public class HrGameNode<A> implements GameNode<A> {
 
     public HrGameNode(Game<A, ?> game, int wins, int plays, double gameStateScore) {
         this.game = game;
+        this.action = null;
+        this.currentPlayer = 0;
         this.wins = wins;
         this.plays = plays;
         this.gameStateScore = gameStateScore;
     }
 
+    /**
+     * Creates a node that stores only the action edge leading to it instead of its game state.
+     * The state has to be reconstructed by replaying the actions from the nearest ancestor with a game.
+     * @param action The action leading to this node
+     * @param currentPlayer The player to move in this node, negative for chance nodes
+     * @param gameStateScore Cached game state score, NaN if unknown
+     */
+    public HrGameNode(A action, int currentPlayer, double gameStateScore) {
+        this.game = null;
+        this.action = action;
+        this.currentPlayer = currentPlayer;
+        this.gameStateScore = gameStateScore;
+    }
+
     public Game<A, ?> getGame() {
         return game;
     }
 
+    /**
+     * Gets the action leading to this node.
+     * @return The stored action edge, or the previous action of the game state
+     */
+    public A getAction() {
+        if (action != null) {
+            return action;
+        }
+        Game<A, ?> g = game;
+        return g != null ? g.getPreviousAction() : null;
+    }
+
+    /**
+     * Gets all actions leading to this node from its parent.
+     * @return The macro actions if the node is reached by a macro edge, otherwise just {@link #getAction()}
+     */
+    public List<A> getActions() {
+        List<A> macro = macroActions;
+        return macro != null ? macro : Collections.singletonList(getAction());
+    }
+
+    /**
+     * Marks this node as reached by a sequence of actions, see {@link RiskMacroActions}.
+     * {@link #getAction()} keeps returning the last of them.
+     * @param macroActions The actions in the order they are played
+     */
+    public void setMacroActions(List<A> macroActions) {
+        this.macroActions = macroActions;
+    }
+
+    /**
+     * Marks this node as expanded into macros, whose children do not cover all of its actions.
+     * @param macroChildren true if the children are macros, see {@link RiskMacroActions}
+     */
+    public void setMacroChildren(boolean macroChildren) {
+        this.macroChildren = macroChildren;
+    }
+
+    public boolean hasMacroChildren() {
+        return macroChildren;
+    }
+
+    /**
+     * Marks this node as having a child for every one of its actions.
+     * Must only be set once the last children are published, and cleared when they are dropped.
+     * @param fullyExpanded true if every action of this node has a child
+     */
+    public void setFullyExpanded(boolean fullyExpanded) {
+        this.fullyExpanded = fullyExpanded;
+    }
+
+    public boolean isFullyExpanded() {
+        return fullyExpanded;
+    }
+
+    /**
+     * Gets the proven value of this node from the point of view of the searching player.
+     * @return {@link #PROVEN_WIN}, {@link #PROVEN_LOSS} or {@link #UNPROVEN}
+     */
+    public int getProvenValue() {
+        return provenValue;
+    }
+
+    public void setProvenValue(int provenValue) {
+        this.provenValue = provenValue;
+    }
+
+    public boolean isProven() {
+        return provenValue != UNPROVEN;
+    }
+
+    /**
+     * Gets the player to move in this node without requiring its game state.
+     * @return The current player, negative for chance nodes
+     */
+    public int getCurrentPlayer() {
+        Game<A, ?> g = game;
+        return g != null ? g.getCurrentPlayer() : currentPlayer;
+    }
+
     public void setGame(Game<A, ?> game) {
         this.game = game;
+        this.hash = 0L;
     }
 
     public int getWins() {
@@ -68,7 +223,11 @@ public class HrGameNode<A> implements GameNode<A> {
     }
 
     public void incWins() {
-        wins++;
+        WINS.incrementAndGet(this);
+    }
+
+    public void addWins(int wins) {
+        WINS.addAndGet(this, wins);
     }
 
     public int getPlays() {
@@ -80,7 +239,153 @@ public class HrGameNode<A> implements GameNode<A> {
     }
 
     public void incPlays() {
-        plays++;
+        PLAYS.incrementAndGet(this);
+    }
+
+    public void addPlays(int plays) {
+        PLAYS.addAndGet(this, plays);
+    }
+
+    public int getRaveWins() {
+        return raveWins;
+    }
+
+    public int getRavePlays() {
+        return ravePlays;
+    }
+
+    /**
+     * Adds the result of simulations in which the action of this node was played later on
+     * by the same player, see {@link MCTSAgent#setRave(double)}.
+     * @param wins Number of these simulations that resulted in a win
+     * @param plays Number of these simulations
+     */
+    public void addRaveResult(int wins, int plays) {
+        if (wins > 0) {
+            RAVE_WINS.addAndGet(this, wins);
+        }
+        RAVE_PLAYS.addAndGet(this, plays);
+    }
+
+    public int getVirtualLoss() {
+        return virtualLoss;
+    }
+
+    /**
+     * Marks a thread descending through this node, making it look worse to the other threads.
+     * @param loss Number of virtual losses to add
+     */
+    public void addVirtualLoss(int loss) {
+        VIRTUAL_LOSS.addAndGet(this, loss);
+    }
+
+    /**
+     * Reverts a virtual loss added during selection.
+     * @param loss Number of virtual losses to remove
+     */
+    public void removeVirtualLoss(int loss) {
+        VIRTUAL_LOSS.addAndGet(this, -loss);
+    }
+
+    /**
+     * Gets the child of a chance node that was created for the given outcome.
+     * @param outcome The chance action
+     * @return The child, or null if the outcome was not sampled yet
+     */
+    public Tree<HrGameNode<A>> getOutcome(A outcome) {
+        Map<A, Tree<HrGameNode<A>>> map = outcomes;
+        return map != null ? map.get(outcome) : null;
+    }
+
+    /**
+     * Records the child of a chance node created for the given outcome.
+     * Callers must serialize additions, lookups may run concurrently.
+     * @param outcome The chance action
+     * @param child The child reached by it
+     */
+    public void putOutcome(A outcome, Tree<HrGameNode<A>> child) {
+        Map<A, Tree<HrGameNode<A>>> map = outcomes;
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            outcomes = map;
+        }
+        map.put(outcome, child);
+    }
+
+    /**
+     * Forgets the outcome children, e.g. after they were dropped from the tree.
+     */
+    public void clearOutcomes() {
+        outcomes = null;
+    }
+
+    /**
+     * Sets the actions still to be expanded under progressive widening.
+     * Must only be called while holding the expansion claim, see {@link #tryStartExpansion()}.
+     * @param pendingActions The actions in the order they are to be expanded, or null for none
+     */
+    public void setPendingActions(List<A> pendingActions) {
+        this.pendingIndex = 0;
+        this.pendingActions = pendingActions;
+    }
+
+    public boolean hasPendingActions() {
+        List<A> pending = pendingActions;
+        return pending != null && pendingIndex < pending.size();
+    }
+
+    /**
+     * Removes the next pending actions.
+     * Must only be called while holding the expansion claim, see {@link #tryStartExpansion()}.
+     * @param count Maximum number of actions to take
+     * @return The taken actions, in expansion order
+     */
+    public List<A> takePendingActions(int count) {
+        List<A> pending = pendingActions;
+        if (pending == null) {
+            return Collections.emptyList();
+        }
+        int from = pendingIndex;
+        int to = Math.min(pending.size(), from + Math.max(0, count));
+        pendingIndex = to;
+        return pending.subList(from, to);
+    }
+
+    /**
+     * Puts back the last taken pending actions, so a later expansion takes them again.
+     * Must only be called while holding the expansion claim, see {@link #tryStartExpansion()}.
+     * @param count Number of actions to put back
+     */
+    public void restorePendingActions(int count) {
+        pendingIndex = Math.max(0, pendingIndex - count);
+    }
+
+    /**
+     * Claims the right to expand this node. Only one thread can hold it at a time.
+     * @return true if the calling thread may expand the node, false if another thread is doing so
+     */
+    public boolean tryStartExpansion() {
+        return EXPANDING.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Gets the number of nodes in the subtree below and including this node.
+     * It is kept up to date by the tree, so re-rooting does not need to count the nodes.
+     * @return The subtree size, at least one
+     */
+    public int getSubtreeSize() {
+        return subtreeSize;
+    }
+
+    public void addSubtreeSize(int nodes) {
+        SUBTREE_SIZE.addAndGet(this, nodes);
+    }
+
+    /**
+     * Releases the right to expand this node claimed by {@link #tryStartExpansion()}.
+     */
+    public void finishExpansion() {
+        expanding = 0;
     }
 
     public double getGameStateScore() {
@@ -95,6 +400,30 @@ public class HrGameNode<A> implements GameNode<A> {
         return !Double.isNaN(gameStateScore);
     }
 
+    /**
+     * Gets the 64-bit hash of the node's game state.
+     * Nodes created during expansion receive it incrementally from their parent;
+     * otherwise it is computed from scratch on first access.
+     * Unlike the statistics it never changes, so it is usable as a stable key.
+     * @return The state hash, or 0 if the node has no game
+     */
+    public long getHash() {
+        long h = hash;
+        if (h == 0L && game != null) {
+            h = game instanceof Risk ? RiskZobrist.hash((Risk) game) : game.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    public void setHash(long hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * Nodes are equal if they hold equal game states. The hash only rules out unequal states quickly,
+     * since different states may collide; nodes without a game state are only equal to themselves.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -104,14 +433,16 @@ public class HrGameNode<A> implements GameNode<A> {
             return false;
         }
         HrGameNode<?> hrGameNode = (HrGameNode<?>) o;
-        return wins == hrGameNode.wins &&
-                plays == hrGameNode.plays &&
-                game.equals(hrGameNode.game);
+        Game<A, ?> thisGame = game;
+        Game<?, ?> otherGame = hrGameNode.game;
+        return thisGame != null && otherGame != null
+                && getHash() == hrGameNode.getHash()
+                && thisGame.equals(otherGame);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(game, wins, plays);
+        return Long.hashCode(getHash());
     }
 
 }
\ No newline at end of file
@@ -1,14 +1,23 @@
 package highroller.agents;
 
+import at.ac.tuwien.ifs.sge.game.ActionRecord;
 import at.ac.tuwien.ifs.sge.game.Game;
 import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
 import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
 import at.ac.tuwien.ifs.sge.util.Util;
 import at.ac.tuwien.ifs.sge.util.tree.DoubleLinkedTree;
 import at.ac.tuwien.ifs.sge.util.tree.Tree;
 
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 /**
  * MCTSAgent provides the core Monte Carlo Tree Search functionality.
@@ -26,6 +35,21 @@ import java.util.concurrent.TimeUnit;
  * - Heuristic-guided simulations for early moves
  * - Game state score influenced tie resolution
  * - Performance optimized tree operations
+ * - Tree-parallel search with virtual loss on a shared tree
+ * - Leaf-parallel batched playouts from a single selected node
+ * - Optional transposition table pooling statistics of equivalent states
+ * - Subtree reuse between turns by descending along the actions actually taken
+ * - Optional compact array-based tree storage, see {@link CompactTree}
+ * - Optional action-replay nodes that keep only the action edge instead of a game state
+ * - Optional node and memory budget, enforced by pruning the least-visited subtrees
+ * - Optional allocation-free Risk playouts on a mutable {@link RiskPlayoutBoard}
+ * - Optional collapsed chance nodes whose children are created per sampled outcome
+ * - Optional progressive widening of Risk player nodes, ordered by a cheap action prior
+ * - Optional macro placements of Risk reinforcements searched as single edges, see {@link RiskMacroActions}
+ * - Optional RAVE, blending all-moves-as-first statistics into the UCT value of rarely visited nodes
+ * - MCTS-Solver: proven wins and losses propagated through the object tree, proven nodes are not simulated
+ * - Deadline flag raised by a timer thread, so the hot loops check time without reading the clock
+ * - Optional atomic iterations: an iteration that runs out of time is discarded instead of counted as a loss
  * 
  * The agent uses a combination of:
  * - UCT formula for exploration/exploitation balance
@@ -36,21 +60,62 @@ import java.util.concurrent.TimeUnit;
 public class MCTSAgent<G extends Game<A, ?>, A> {
     private static final int MAX_PRINT_THRESHOLD = 97;
     private static final int MAX_SIMULATION_DEPTH = 50; // Prevent infinite simulations
+    private static final int DEFAULT_STATE_CACHE_SIZE = 64;
+    // Rough retained sizes measured on the default Risk board with compressed references
+    private static final int NODE_BYTES = 120; // DoubleLinkedTree, HrGameNode and share of the children list
+    private static final int GAME_BYTES = 4_000; // Risk state without its action history
+    private static final int ACTION_RECORD_BYTES = 6; // Per action in the copied action history of a state
+    // Pruning goes below the budget so the tree has room to grow before the next pruning
+    private static final double PRUNE_TARGET = 0.75;
+    private static final double DEFAULT_WIDENING_EXPONENT = 0.5;
+    // Results of a single playout, aborted ones ran out of time before reaching their final state
+    private static final int PLAYOUT_LOSS = 0;
+    private static final int PLAYOUT_WIN = 1;
+    private static final int PLAYOUT_ABORTED = -1;
+    // One mutable playout board per thread, reused across playouts and agents
+    private static final ThreadLocal<RiskPlayoutBoard> PLAYOUT_BOARDS = new ThreadLocal<>();
+    // Raises the deadline flags of all agents
+    private static final ScheduledExecutorService DEADLINE_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MCTSAgent-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final double exploitationConstant;
     private final Tree<HrGameNode<A>> tree;
-    private final Random random;
     private final int playerId;
     private long START_TIME;
     private long TIMEOUT;
-    private long TIME_BUFFER = 100_000_000; // 100ms buffer to ensure we don't exceed time limit
+    public static final long TIME_BUFFER = 100_000_000; // 100ms buffer to ensure we don't exceed time limit
+    // A fresh flag per search, so a late timer of an earlier search cannot stop the current one
+    private volatile AtomicBoolean timeUp = new AtomicBoolean(false);
+    private ScheduledFuture<?> deadline;
+    private int virtualLoss = 0;
+    private int leafParallelism = 1;
+    private ForkJoinPool playoutPool;
+    private TranspositionTable transpositionTable;
+    private CompactTree<A> compactTree;
+    private boolean actionReplay = false;
+    private int stateCacheSize = DEFAULT_STATE_CACHE_SIZE;
+    private Map<Tree<HrGameNode<A>>, Game<A, ?>> stateCache;
+    private int nodeBudget = 0;
+    private long memoryBudget = 0;
+    private boolean mutablePlayouts = false;
+    private EvaluationCache evaluationCache;
+    private boolean collapsedChanceNodes = false;
+    private double wideningCoefficient = 0;
+    private double wideningExponent = DEFAULT_WIDENING_EXPONENT;
+    private int macroFrontierSize = 0;
+    private double raveEquivalence = 0;
+    // Actions of the last playout of the current thread, with a bitmask of the players that played them
+    private final ThreadLocal<Map<A, Integer>> amafActions = ThreadLocal.withInitial(HashMap::new);
+    private boolean atomicIterations = false;
+    // Whether the simulation of the current iteration of the thread ran out of time, only tracked for atomic iterations
+    private final ThreadLocal<Boolean> iterationAborted = ThreadLocal.withInitial(() -> Boolean.FALSE);
 
     private Comparator<Tree<HrGameNode<A>>> gameTreeUCTComparator;
     private Comparator<Tree<HrGameNode<A>>> gameTreeSelectionComparator;
-    private Comparator<Tree<HrGameNode<A>>> gameTreePlayComparator;
     private Comparator<HrGameNode<A>> gameNodePlayComparator;
-    private Comparator<Tree<HrGameNode<A>>> gameTreeWinComparator;
     private Comparator<HrGameNode<A>> gameNodeWinComparator;
-    private Comparator<Tree<HrGameNode<A>>> gameTreeMoveComparator;
     private Comparator<HrGameNode<A>> gameNodeMoveComparator;
     private Comparator<HrGameNode<A>> gameNodeGameComparator;
     private Comparator<Tree<HrGameNode<A>>> gameTreeGameComparator;
@@ -64,7 +129,6 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
         this.exploitationConstant = exploitationConstant;
         this.playerId = playerId;
         this.tree = new DoubleLinkedTree<>();
-        this.random = new Random();
     }
 
     /**
@@ -74,16 +138,21 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
     public void setUp() {
         tree.clear();
         tree.setNode(new HrGameNode<>());
+        if (transpositionTable != null) {
+            transpositionTable.clear();
+        }
+        if (compactTree != null) {
+            compactTree.clear();
+        }
+        clearStateCache();
 
         gameTreeUCTComparator = Comparator.comparingDouble(
                 (Tree<HrGameNode<A>> t) -> upperConfidenceBound(t, exploitationConstant));
         gameNodePlayComparator = Comparator.comparingInt(
                 (HrGameNode<A> n) -> n.getPlays());
-        gameTreePlayComparator = (Tree<HrGameNode<A>> o1, Tree<HrGameNode<A>> o2) -> gameNodePlayComparator.compare(o1.getNode(), o2.getNode());
 
         gameNodeWinComparator = Comparator.comparingInt(
                 (HrGameNode<A> n) -> n.getWins());
-        gameTreeWinComparator = (Tree<HrGameNode<A>> o1, Tree<HrGameNode<A>> o2) -> gameNodeWinComparator.compare(o1.getNode(), o2.getNode());
 
         gameNodeGameComparator = (HrGameNode<A> o1, HrGameNode<A> o2) -> {
             Game<A, ?> g1 = o1.getGame();
@@ -99,91 +168,810 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
         gameTreeSelectionComparator = gameTreeUCTComparator.thenComparing(gameTreeGameComparator);
 
         gameNodeMoveComparator = gameNodePlayComparator.thenComparing(gameNodeWinComparator).thenComparing(gameNodeGameComparator);
-        gameTreeMoveComparator = (Tree<HrGameNode<A>> o1, Tree<HrGameNode<A>> o2) -> gameNodeMoveComparator
-                .compare(o1.getNode(), o2.getNode());
     }
 
     /**
      * Sets the computation time parameters for the next search.
+     * The search ends {@link #TIME_BUFFER} before the computation time is up.
      * @param computationTime Maximum time allowed for computation
      * @param timeUnit Unit of time for computation limit
      */
     public void setTimers(long computationTime, TimeUnit timeUnit) {
+        setSearchTime(timeUnit.toNanos(computationTime) - TIME_BUFFER, TimeUnit.NANOSECONDS); // Subtract buffer to ensure we don't exceed time limit
+    }
+
+    /**
+     * Sets the time the next search may take, with the safety buffer already taken off, e.g. a
+     * share of the computation time allotted by a {@link TimeManager}.
+     * The deadline is raised by a timer thread, so checking it does not read the clock.
+     * @param searchTime Time the search may take
+     * @param timeUnit Unit of the search time
+     */
+    public synchronized void setSearchTime(long searchTime, TimeUnit timeUnit) {
         START_TIME = System.nanoTime();
-        TIMEOUT = timeUnit.toNanos(computationTime) - TIME_BUFFER; // Subtract buffer to ensure we don't exceed time limit
+        TIMEOUT = timeUnit.toNanos(searchTime);
+        cancelDeadline();
+        AtomicBoolean flag = new AtomicBoolean(TIMEOUT <= 0);
+        timeUp = flag;
+        if (TIMEOUT > 0) {
+            deadline = DEADLINE_TIMER.schedule(() -> flag.set(true), TIMEOUT, TimeUnit.NANOSECONDS);
+        }
     }
 
     /**
-     * Sorts promising candidates in the game tree to quickly identify winning moves.
-     * @param tree Current game tree
-     * @param comparator Comparator used for sorting nodes
-     * @return true if a determined winning path is found, false otherwise
-     */
-    public boolean sortPromisingCandidates(Tree<HrGameNode<A>> tree, Comparator<HrGameNode<A>> comparator) {
-        boolean isDetermined = true;
-        while (!tree.isLeaf() && isDetermined && !shouldStopComputation()) {
-            isDetermined = tree.getChildren().stream()
-                    .allMatch(c -> c.getNode().getGame().getCurrentPlayer() >= 0);
-            if (tree.getNode().getGame().getCurrentPlayer() == playerId) {
-                tree.sort(comparator);
+     * Removes the time limit, e.g. for pondering, where the search is stopped from outside.
+     */
+    public synchronized void clearTimers() {
+        START_TIME = System.nanoTime();
+        TIMEOUT = Long.MAX_VALUE;
+        cancelDeadline();
+        timeUp = new AtomicBoolean(false);
+    }
+
+    /**
+     * Cancels the timer of the previous search, if it has not fired yet.
+     */
+    private void cancelDeadline() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * Sets the virtual loss applied to every node a thread descends through during selection.
+     * A positive value enables tree-parallel search, where several threads share this agent's tree
+     * and diverge onto different branches. Zero disables it.
+     * @param virtualLoss Number of virtual losses per visited node
+     */
+    public void setVirtualLoss(int virtualLoss) {
+        if (virtualLoss < 0) {
+            throw new IllegalArgumentException("Virtual loss must be non-negative");
+        }
+        if (virtualLoss > 0 && compactTree != null) {
+            throw new IllegalStateException("The compact tree does not support tree-parallel search");
+        }
+        this.virtualLoss = virtualLoss;
+    }
+
+    /**
+     * Sets the number of playouts run concurrently from every selected leaf.
+     * A value above one enables leaf-parallel search on a dedicated ForkJoinPool.
+     * @param leafParallelism Number of playouts per iteration
+     */
+    public void setLeafParallelism(int leafParallelism) {
+        if (leafParallelism < 1) {
+            throw new IllegalArgumentException("Leaf parallelism must be positive");
+        }
+        if (playoutPool != null) {
+            playoutPool.shutdownNow();
+            playoutPool = null;
+        }
+        this.leafParallelism = leafParallelism;
+        if (leafParallelism > 1) {
+            playoutPool = new ForkJoinPool(leafParallelism);
+        }
+    }
+
+    /**
+     * Gets the number of playouts run from every selected leaf.
+     * @return The leaf parallelism
+     */
+    public int getLeafParallelism() {
+        return leafParallelism;
+    }
+
+    /**
+     * Enables a transposition table that pools the statistics of equivalent Risk states.
+     * @param capacity Maximum number of states in the table, zero disables it
+     */
+    public void setTranspositionTableSize(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be non-negative");
+        }
+        transpositionTable = capacity > 0 ? new TranspositionTable(capacity) : null;
+    }
+
+    /**
+     * Switches between the object tree of HrGameNodes and a {@link CompactTree}.
+     * The compact tree keeps no game states and is searched with {@link #compactIteration()}.
+     * It is single-threaded, so it does not support virtual loss, and it has no state hashes,
+     * so the transposition table is not used with it.
+     * @param enabled true to store the tree in primitive arrays
+     */
+    public void setCompactTree(boolean enabled) {
+        if (enabled && virtualLoss > 0) {
+            throw new IllegalStateException("The compact tree does not support tree-parallel search");
+        }
+        compactTree = enabled ? new CompactTree<>() : null;
+    }
+
+    /**
+     * Switches expanded nodes of the object tree to action-replay nodes.
+     * These store only the action leading to them; their game state is replayed from the root
+     * when needed, with the most recently used states kept in a small cache.
+     * This trades some CPU time for far less memory per node.
+     * @param actionReplay true to keep game states only at the root
+     */
+    public void setActionReplay(boolean actionReplay) {
+        this.actionReplay = actionReplay;
+        stateCache = null;
+        if (actionReplay && stateCacheSize > 0) {
+            int capacity = stateCacheSize;
+            stateCache = Collections.synchronizedMap(new LinkedHashMap<Tree<HrGameNode<A>>, Game<A, ?>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Tree<HrGameNode<A>>, Game<A, ?>> eldest) {
+                    return size() > capacity;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets how many replayed game states are cached in action-replay mode.
+     * @param stateCacheSize Maximum number of cached states, zero disables the cache
+     */
+    public void setStateCacheSize(int stateCacheSize) {
+        if (stateCacheSize < 0) {
+            throw new IllegalArgumentException("State cache size must be non-negative");
+        }
+        this.stateCacheSize = stateCacheSize;
+        setActionReplay(actionReplay);
+    }
+
+    /**
+     * Limits the number of tree nodes. Once reached, no more nodes are expanded and the search
+     * continues with playouts from the existing leaves; when the root is advanced, the
+     * least-visited subtrees are pruned to make room again.
+     * @param nodeBudget Maximum number of nodes, zero for no limit
+     */
+    public void setNodeBudget(int nodeBudget) {
+        if (nodeBudget < 0) {
+            throw new IllegalArgumentException("Node budget must be non-negative");
+        }
+        this.nodeBudget = nodeBudget;
+    }
+
+    /**
+     * Limits the estimated heap retained by the tree, see {@link #getEstimatedBytes()}.
+     * Enforced like the node budget of {@link #setNodeBudget(int)}.
+     * @param memoryBudget Maximum estimated size in bytes, zero for no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must be non-negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Runs Risk playouts on a mutable {@link RiskPlayoutBoard} instead of the immutable engine state.
+     * Playouts then no longer copy the game for every action, at the price of slightly simplified
+     * rules and a purely random policy. States the playout board does not support are still
+     * simulated by the engine.
+     * @param mutablePlayouts true to simulate on the playout board
+     */
+    public void setMutablePlayouts(boolean mutablePlayouts) {
+        this.mutablePlayouts = mutablePlayouts;
+    }
+
+    /**
+     * Collapses chance nodes of the object tree into a single sampled transition.
+     * Selection draws the outcome of a chance node from the game and looks up the child for it
+     * by hash; children are only created for outcomes that were actually drawn, so chance nodes
+     * are never expanded as a whole. Has no effect on the compact tree, whose children have to
+     * be added at once.
+     * @param collapsedChanceNodes true to create chance children lazily per sampled outcome
+     */
+    public void setCollapsedChanceNodes(boolean collapsedChanceNodes) {
+        this.collapsedChanceNodes = collapsedChanceNodes;
+    }
+
+    /**
+     * Enables progressive widening of the object tree for Risk player nodes.
+     * A node with n plays may have ceil(coefficient * (n + 1)^exponent) children. Its actions are
+     * ordered by {@link RiskMetricsCalculator#getActionPrior} of the player to move when it is
+     * first expanded, and the next ones are added during selection as its plays grow.
+     * Chance nodes, other games and the compact tree are always expanded completely.
+     * @param coefficient Children of an unvisited node, zero disables widening
+     * @param exponent Growth of the number of children with the plays, between 0 and 1
+     */
+    public void setProgressiveWidening(double coefficient, double exponent) {
+        if (coefficient < 0) {
+            throw new IllegalArgumentException("Widening coefficient must be non-negative");
+        }
+        if (exponent < 0 || exponent > 1) {
+            throw new IllegalArgumentException("Widening exponent must be between 0 and 1");
+        }
+        this.wideningCoefficient = coefficient;
+        this.wideningExponent = exponent;
+    }
+
+    /**
+     * Replaces the placement of reinforcements in the object tree by macro placements.
+     * Each macro is a single edge whose child is the state after all of its placements, so a
+     * whole reinforcement phase is one step deep instead of one step per placement. Nodes reached
+     * by a macro report it in {@link HrGameNode#getActions()}. Such nodes are not widened
+     * progressively, since there are only a few macros. Has no effect on the compact tree.
+     * @param frontierSize Number of best frontier territories the macros are built from, zero disables macros
+     */
+    public void setMacroReinforcements(int frontierSize) {
+        if (frontierSize < 0) {
+            throw new IllegalArgumentException("Frontier size must be non-negative");
+        }
+        this.macroFrontierSize = frontierSize;
+    }
+
+    /**
+     * Enables Rapid Action Value Estimation (RAVE) on the object tree.
+     * Every simulation also counts for the all-moves-as-first (AMAF) statistics of the siblings
+     * on its path whose action the same player played later on, in the tree or in the playout.
+     * The UCT value blends the win rate of a node with its AMAF win rate, weighted by
+     * beta = sqrt(k / (3n + k)) for a node with n plays, so the AMAF estimate guides the first
+     * visits and fades out as real statistics come in.
+     * Mutable and leaf-parallel playouts do not record their actions, so with them only the
+     * actions of the tree path count. Has no effect on the compact tree.
+     * @param equivalence Plays k at which both estimates weigh about the same, zero disables RAVE
+     */
+    public void setRave(double equivalence) {
+        if (equivalence < 0) {
+            throw new IllegalArgumentException("RAVE equivalence must be non-negative");
+        }
+        this.raveEquivalence = equivalence;
+    }
+
+    /**
+     * Switches to atomic iterations. A simulation that runs out of time is normally counted as a
+     * loss; with atomic iterations, such an iteration adds no statistics at all, while a finished
+     * simulation is always backpropagated and evaluated in full. With leaf parallelism, the whole
+     * batch is discarded if any of its playouts ran out of time.
+     * @param atomicIterations true to discard iterations that run out of time
+     */
+    public void setAtomicIterations(boolean atomicIterations) {
+        this.atomicIterations = atomicIterations;
+    }
+
+    /**
+     * Sets the cache consulted before every game state score computation.
+     * The cache may be shared by several agents of the same player, since scores only depend on the state.
+     * @param evaluationCache The cache, or null to always evaluate
+     */
+    public void setEvaluationCache(EvaluationCache evaluationCache) {
+        this.evaluationCache = evaluationCache;
+    }
+
+    public EvaluationCache getEvaluationCache() {
+        return evaluationCache;
+    }
+
+    /**
+     * Checks whether the tree is stored in a {@link CompactTree}.
+     * @return true if the compact tree is used
+     */
+    public boolean isCompactTree() {
+        return compactTree != null;
+    }
+
+    /**
+     * Releases the threads held by this agent.
+     */
+    public void tearDown() {
+        if (playoutPool != null) {
+            playoutPool.shutdownNow();
+            playoutPool = null;
+        }
+    }
+
+    /**
+     * Moves the root of the tree to the given game state, keeping the statistics of the subtree
+     * that was already searched. The tree is descended along the actions taken since the current
+     * root, including opponent and chance actions, so the cost is linear in the number of actions.
+     * If the path left the searched part of the tree, the tree is reset to the given state.
+     * @param game The current game state
+     * @return true if a searched subtree was reused, false if the tree was reset
+     */
+    public boolean advanceRoot(Game<A, ?> game) {
+        Game<A, ?> rootGame = tree.getNode().getGame();
+        List<ActionRecord<A>> records = game.getActionRecords();
+        if (compactTree != null) {
+            return advanceCompactRoot(game, rootGame, records);
+        }
+        clearStateCache();
+        Tree<HrGameNode<A>> subtree = null;
+        if (isPrefix(rootGame, records)) {
+            subtree = tree;
+            int i = rootGame.getNumberOfActions();
+            while (subtree != null && i < records.size()) {
+                subtree = childWithActions(subtree, records, i);
+                if (subtree != null) {
+                    i += subtree.getNode().getActions().size();
+                }
+            }
+        }
+
+        if (subtree == null) {
+            tree.dropChildren();
+            tree.setNode(new HrGameNode<>(game));
+            return false;
+        }
+        if (subtree != tree) {
+            // The node count of the new root is its subtree size, which is kept up to date
+            tree.reRoot(subtree);
+        }
+        tree.getNode().setGame(game);
+        pruneToBudget();
+        return true;
+    }
+
+    /**
+     * Compact tree variant of {@link #advanceRoot(Game)}.
+     * The object tree only keeps the root, which holds the game state the compact tree is rooted at.
+     * @param game The current game state
+     * @param rootGame The game state of the current root
+     * @param records The actions that led to the current game state
+     * @return true if a searched subtree was reused, false if the tree was reset
+     */
+    private boolean advanceCompactRoot(Game<A, ?> game, Game<A, ?> rootGame, List<ActionRecord<A>> records) {
+        int node = -1;
+        if (isPrefix(rootGame, records)) {
+            node = 0;
+            for (int i = rootGame.getNumberOfActions(); node >= 0 && i < records.size(); i++) {
+                node = compactTree.findChild(node, records.get(i).getAction());
+            }
+        }
+
+        tree.dropChildren();
+        tree.setNode(new HrGameNode<>(game));
+        if (node < 0) {
+            compactTree.clear();
+            return false;
+        }
+        compactTree.reRoot(node);
+        pruneToBudget();
+        return true;
+    }
+
+    /**
+     * Prunes the least-visited subtrees if the tree exceeds its node or memory budget.
+     * Must not run concurrently with a search on this tree.
+     */
+    private void pruneToBudget() {
+        if (!isOverBudget()) {
+            return;
+        }
+        int nodes = getNodeCount();
+        double ratio = 1;
+        if (nodeBudget > 0) {
+            ratio = Math.min(ratio, (double) nodeBudget / nodes);
+        }
+        if (memoryBudget > 0) {
+            ratio = Math.min(ratio, (double) memoryBudget / getEstimatedBytes());
+        }
+        int maxNodes = (int) (nodes * ratio * PRUNE_TARGET);
+        if (compactTree != null) {
+            compactTree.prune(maxNodes);
+            return;
+        }
+        int[] pathPlays = new int[nodes - 1];
+        int count = collectPathPlays(tree, Integer.MAX_VALUE, pathPlays, 0);
+        int threshold = CompactTree.pruneThreshold(pathPlays, 0, count, maxNodes);
+        if (threshold >= 0) {
+            tree.getNode().addSubtreeSize(-dropColdSubtrees(tree, threshold));
+        }
+    }
+
+    /**
+     * Records for every node below the given one the least plays on its path, excluding the
+     * given node itself, in depth-first order. Children of the root are never pruned.
+     * @param tree The node to start at
+     * @param pathPlays Least plays on the path so far
+     * @param out Array receiving the values
+     * @param index Next free index in the array
+     * @return The next free index after all descendants
+     */
+    private int collectPathPlays(Tree<HrGameNode<A>> tree, int pathPlays, int[] out, int index) {
+        for (Tree<HrGameNode<A>> child : tree.getChildren()) {
+            out[index++] = pathPlays;
+            index = collectPathPlays(child, Math.min(pathPlays, child.getNode().getPlays()), out, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drops the children of every node below the given one with at most the given number of plays.
+     * The subtree sizes of the descendants are updated, that of the given node is left to the caller.
+     * @param tree The node whose descendants are pruned
+     * @param threshold Nodes with at most this many plays lose their children
+     * @return Number of nodes dropped
+     */
+    private int dropColdSubtrees(Tree<HrGameNode<A>> tree, int threshold) {
+        int dropped = 0;
+        for (Tree<HrGameNode<A>> child : tree.getChildren()) {
+            int childDropped;
+            if (child.getNode().getPlays() <= threshold) {
+                childDropped = child.getNode().getSubtreeSize() - 1;
+                child.dropChildren();
+                child.getNode().clearOutcomes();
+                child.getNode().setPendingActions(null);
+                child.getNode().setFullyExpanded(false);
+                child.getNode().setMacroChildren(false);
             } else {
-                tree.sort(comparator.reversed());
+                childDropped = dropColdSubtrees(child, threshold);
+            }
+            child.getNode().addSubtreeSize(-childDropped);
+            dropped += childDropped;
+        }
+        return dropped;
+    }
+
+    /**
+     * Adds new nodes to the subtree sizes of the given node and all of its ancestors.
+     * @param tree The node the new nodes were added below
+     * @param nodes Number of new nodes
+     */
+    private static <A> void addNodes(Tree<HrGameNode<A>> tree, int nodes) {
+        while (true) {
+            tree.getNode().addSubtreeSize(nodes);
+            if (tree.isRoot()) {
+                return;
+            }
+            tree = tree.getParent();
+        }
+    }
+
+    /**
+     * Checks whether the tree reached its node or memory budget.
+     * @return true if no more nodes should be added
+     */
+    private boolean isOverBudget() {
+        return (nodeBudget > 0 && getNodeCount() >= nodeBudget)
+                || (memoryBudget > 0 && getEstimatedBytes() >= memoryBudget);
+    }
+
+    /**
+     * Checks whether the given root state lies on the path of the given action records.
+     * @param rootGame The game state of the current root
+     * @param records The actions that led to the current game state
+     * @return true if the current state can be reached from the root
+     */
+    private boolean isPrefix(Game<A, ?> rootGame, List<ActionRecord<A>> records) {
+        return rootGame != null && rootGame.getNumberOfActions() <= records.size()
+                && Objects.equals(rootGame.getPreviousActionRecord(),
+                rootGame.getNumberOfActions() == 0 ? null : records.get(rootGame.getNumberOfActions() - 1));
+    }
+
+    /**
+     * Finds the child reached by the actions starting at the given record.
+     * A macro child only matches if all of its actions were taken.
+     * @param tree Node to search the children of
+     * @param records The actions that led to the current game state
+     * @param from Index of the first action taken from the node
+     * @return The child, or null if it was not expanded
+     */
+    private Tree<HrGameNode<A>> childWithActions(Tree<HrGameNode<A>> tree, List<ActionRecord<A>> records, int from) {
+        for (Tree<HrGameNode<A>> child : childrenOf(tree)) {
+            List<A> actions = child.getNode().getActions();
+            if (from + actions.size() > records.size()) {
+                continue;
+            }
+            int matched = 0;
+            while (matched < actions.size() && actions.get(matched).equals(records.get(from + matched).getAction())) {
+                matched++;
+            }
+            if (matched == actions.size()) {
+                return child;
             }
-            tree = tree.getChild(0);
         }
-        return isDetermined && tree.getNode().getGame().isGameOver();
+        return null;
     }
 
     /**
      * Selection phase of MCTS.
      * Traverses the tree from root to leaf using UCT formula to select promising nodes.
+     * With collapsed chance nodes, the outcome of every chance node on the way is sampled,
+     * see {@link #sampleOutcome(Tree)}. Selection stops at proven nodes, whose value is known.
      * @param tree Current game tree
      * @return Selected leaf node for expansion
      */
     public Tree<HrGameNode<A>> selection(Tree<HrGameNode<A>> tree) {
-        while (!tree.isLeaf() && !shouldStopComputation()) {
-            List<Tree<HrGameNode<A>>> children = new ArrayList<>(tree.getChildren());
-            if (tree.getNode().getGame().getCurrentPlayer() < 0) {
-                A action = tree.getNode().getGame().determineNextAction();
+        List<Tree<HrGameNode<A>>> children = childrenOf(tree);
+        while (!shouldStopComputation()) {
+            if (tree.getNode().isProven()) {
+                break;
+            } else if (collapsedChanceNodes && tree.getNode().getCurrentPlayer() < 0) {
+                Tree<HrGameNode<A>> outcome = sampleOutcome(tree);
+                if (outcome == null) {
+                    break;
+                }
+                tree = outcome;
+            } else if (children.isEmpty()) {
+                break;
+            } else if (tree.getNode().getCurrentPlayer() < 0) {
+                A action = gameOf(tree).determineNextAction();
+                Tree<HrGameNode<A>> outcome = null;
                 for (Tree<HrGameNode<A>> child : children) {
-                    if (child.getNode().getGame().getPreviousAction().equals(action)) {
-                        tree = child;
+                    if (child.getNode().getAction().equals(action)) {
+                        outcome = child;
                         break;
                     }
                 }
+                if (outcome == null) {
+                    break;
+                }
+                tree = outcome;
             } else {
+                if (tree.getNode().hasPendingActions() && allowedChildren(tree.getNode()) > children.size()) {
+                    widen(tree);
+                    children = childrenOf(tree);
+                }
                 tree = Collections.max(children, gameTreeSelectionComparator);
             }
+            if (virtualLoss > 0) {
+                tree.getNode().addVirtualLoss(virtualLoss);
+            }
+            children = childrenOf(tree);
         }
         return tree;
     }
 
+    /**
+     * Draws the outcome of a chance node and gets the child for it.
+     * Children are keyed by outcome, so the lookup does not scan the other outcomes; an outcome
+     * drawn for the first time gets its child created and scored here.
+     * @param tree The chance node
+     * @return The child of the drawn outcome, or null if the game is over or the tree is over budget
+     */
+    private Tree<HrGameNode<A>> sampleOutcome(Tree<HrGameNode<A>> tree) {
+        HrGameNode<A> node = tree.getNode();
+        Game<A, ?> game = gameOf(tree);
+        if (game.isGameOver()) {
+            return null;
+        }
+        A action = game.determineNextAction();
+        Tree<HrGameNode<A>> outcome = node.getOutcome(action);
+        if (outcome != null && outcome.getParent() == tree) {
+            return outcome;
+        }
+        if (isOverBudget()) {
+            return null;
+        }
+        Tree<HrGameNode<A>> created = new DoubleLinkedTree<>(createOutcome(node, game, action));
+        synchronized (tree) {
+            // Another thread may have drawn the same outcome meanwhile
+            outcome = node.getOutcome(action);
+            if (outcome == null || outcome.getParent() != tree) {
+                outcome = created;
+                tree.add(created);
+                node.putOutcome(action, created);
+                addNodes(tree, 1);
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * Creates the node reached from a chance node by the given outcome, with hash and game state score.
+     * @param node The chance node
+     * @param game Game state of the chance node
+     * @param action The drawn outcome
+     * @return The new node, not yet added to the tree
+     */
+    private HrGameNode<A> createOutcome(HrGameNode<A> node, Game<A, ?> game, A action) {
+        Game<A, ?> nextGame = game.doAction(action);
+        HrGameNode<A> childNode = actionReplay
+                ? new HrGameNode<>(action, nextGame.getCurrentPlayer(), Double.NaN)
+                : new HrGameNode<>(nextGame);
+        childNode.setProvenValue(terminalValue(nextGame));
+        if (nextGame instanceof Risk) {
+            Risk risk = (Risk) game;
+            RiskBoard board = risk.getBoard();
+            RiskBoard nextBoard = ((Risk) nextGame).getBoard();
+            int[] affectedTerritories = RiskActionDelta.affectedTerritories(risk, board, (RiskAction) action);
+            childNode.setHash(RiskZobrist.update(node.getHash(), board, game.getCurrentPlayer(),
+                    nextBoard, nextGame.getCurrentPlayer(), affectedTerritories));
+            childNode.setGameStateScore(gameStateScore(nextBoard, childNode.getHash()));
+        } else if (actionReplay) {
+            childNode.setHash(nextGame.hashCode());
+        }
+        return childNode;
+    }
+
     /**
      * Expansion phase of MCTS.
-     * Adds all possible child nodes to the selected leaf node.
+     * Adds all possible child nodes to the selected leaf node, or under progressive widening
+     * only the ones with the best priors, see {@link #setProgressiveWidening(double, double)}.
+     * Risk reinforcement phases get their macro placements instead if enabled,
+     * see {@link #setMacroReinforcements(int)}.
      * Computes the game state score for Risk games if not already computed.
      * @param tree Leaf node to expand
      */
     public void expansion(Tree<HrGameNode<A>> tree) {
-        if (tree.isLeaf() && !shouldStopComputation()) {
-            Game<A, ?> game = tree.getNode().getGame();
-            Set<A> possibleActions = game.getPossibleActions();
-            for (A possibleAction : possibleActions) {
-                if (shouldStopComputation()) break;
-                // Apply action to get next state
-                Game<A, ?> nextGame = game.doAction(possibleAction);
-                HrGameNode<A> childNode = new HrGameNode<>(nextGame);
-                tree.add(childNode);
+        if (collapsedChanceNodes && tree.getNode().getCurrentPlayer() < 0) {
+            // Outcomes are added one by one as selection draws them
+            return;
+        }
+        if (tree.getNode().isProven() || shouldStopComputation() || isOverBudget() || !tree.getNode().tryStartExpansion()) {
+            return;
+        }
+        try {
+            if (!childrenOf(tree).isEmpty()) {
+                return;
+            }
+            HrGameNode<A> node = tree.getNode();
+            Game<A, ?> game = gameOf(tree);
+            if (macroFrontierSize > 0 && game instanceof Risk) {
+                List<List<RiskAction>> macros = RiskMacroActions.of((Risk) game, macroFrontierSize);
+                if (macros != null) {
+                    @SuppressWarnings("unchecked")
+                    List<List<A>> edges = (List<List<A>>) (List<?>) macros;
+                    if (addEdges(tree, game, edges)) {
+                        node.setMacroChildren(true);
+                    }
+                    return;
+                }
+            }
+            Collection<A> actions = game.getPossibleActions();
+            boolean widened = wideningCoefficient > 0 && game instanceof Risk && game.getCurrentPlayer() >= 0
+                    && actions.size() > allowedChildren(node);
+            if (widened) {
+                node.setPendingActions(orderByPrior((Risk) game, actions));
+                actions = node.takePendingActions(allowedChildren(node));
+            }
+            if (addChildren(tree, game, actions)) {
+                if (!widened) {
+                    node.setFullyExpanded(true);
+                }
+            } else if (widened) {
+                node.setPendingActions(null);
+            }
+        } finally {
+            tree.getNode().finishExpansion();
+        }
+    }
+
+    /**
+     * Creates the children reached by the given actions and publishes them at once.
+     * Must only be called while holding the expansion claim of the node.
+     * @param tree The node to add children to
+     * @param game Game state of the node
+     * @param actions The actions leading to the new children
+     * @return true if the children were added, false if the computation had to stop first
+     */
+    private boolean addChildren(Tree<HrGameNode<A>> tree, Game<A, ?> game, Collection<A> actions) {
+        List<List<A>> edges = new ArrayList<>(actions.size());
+        for (A action : actions) {
+            edges.add(Collections.singletonList(action));
+        }
+        return addEdges(tree, game, edges);
+    }
+
+    /**
+     * Creates the children reached by the given action sequences and publishes them at once.
+     * Sequences of more than one action become macro edges, see {@link HrGameNode#getActions()}.
+     * If the computation has to stop before all children are built, none of them are published,
+     * so a node never looks expanded while some of its actions are missing.
+     * Must only be called while holding the expansion claim of the node.
+     * @param tree The node to add children to
+     * @param game Game state of the node
+     * @param edges The action sequences leading to the new children
+     * @return true if the children were added, false if the computation had to stop first
+     */
+    private boolean addEdges(Tree<HrGameNode<A>> tree, Game<A, ?> game, List<List<A>> edges) {
+        HrGameNode<A> node = tree.getNode();
+        Risk risk = game instanceof Risk ? (Risk) game : null;
+        RiskBoard board = risk != null ? risk.getBoard() : null;
+        // Children missing from the evaluation cache are scored incrementally from the leaf
+        RiskMetricsCalculator parentCalculator = null;
+        List<HrGameNode<A>> childNodes = new ArrayList<>(edges.size());
+        for (List<A> edge : edges) {
+            if (shouldStopComputation()) {
+                return false;
+            }
+            // Apply the actions to get next state
+            Game<A, ?> nextGame = game;
+            for (A action : edge) {
+                nextGame = nextGame.doAction(action);
+            }
+            HrGameNode<A> childNode = actionReplay
+                    ? new HrGameNode<>(edge.get(edge.size() - 1), nextGame.getCurrentPlayer(), Double.NaN)
+                    : new HrGameNode<>(nextGame);
+            if (edge.size() > 1) {
+                childNode.setMacroActions(edge);
+            }
+            childNode.setProvenValue(terminalValue(nextGame));
+            childNodes.add(childNode);
+
+            if (nextGame instanceof Risk) {
+                // Share one board copy between the hash update and the game state score
+                RiskBoard nextBoard = ((Risk) nextGame).getBoard();
+                @SuppressWarnings("unchecked")
+                int[] affectedTerritories = RiskMacroActions.affectedTerritories(risk, board, (List<RiskAction>) edge);
+                childNode.setHash(RiskZobrist.update(node.getHash(), board, game.getCurrentPlayer(),
+                        nextBoard, nextGame.getCurrentPlayer(), affectedTerritories));
 
                 // Compute and store game state score if it's a Risk game
-                if (nextGame instanceof Risk && !childNode.hasGameStateScore()) {
-                    RiskMetricsCalculator calculator = new RiskMetricsCalculator((Risk) nextGame, playerId);
-                    childNode.setGameStateScore(calculator.getGameStateScore());
+                if (!childNode.hasGameStateScore()) {
+                    double score = cachedGameStateScore(childNode.getHash());
+                    if (Double.isNaN(score)) {
+                        if (parentCalculator == null) {
+                            parentCalculator = evaluatedCalculator(board, node.getHash());
+                        }
+                        score = parentCalculator.derive(nextBoard, affectedTerritories).getGameStateScore();
+                        cacheGameStateScore(childNode.getHash(), score);
+                    }
+                    childNode.setGameStateScore(score);
+                }
+            } else if (actionReplay) {
+                childNode.setHash(nextGame.hashCode());
+            }
+        }
+        // Publish all children at once so concurrent selections never see a half-built list
+        synchronized (tree) {
+            for (HrGameNode<A> childNode : childNodes) {
+                tree.add(childNode);
+            }
+            addNodes(tree, childNodes.size());
+        }
+        return true;
+    }
+
+    /**
+     * Adds the next pending actions of a progressively widened node, up to the number of children its plays allow.
+     * @param tree The node to widen
+     */
+    private void widen(Tree<HrGameNode<A>> tree) {
+        HrGameNode<A> node = tree.getNode();
+        if (shouldStopComputation() || isOverBudget() || !node.tryStartExpansion()) {
+            return;
+        }
+        try {
+            int missing = allowedChildren(node) - childrenOf(tree).size();
+            if (missing > 0) {
+                List<A> actions = node.takePendingActions(missing);
+                if (!addChildren(tree, gameOf(tree), actions)) {
+                    node.restorePendingActions(actions.size());
+                } else if (!node.hasPendingActions()) {
+                    node.setFullyExpanded(true);
                 }
             }
+        } finally {
+            node.finishExpansion();
         }
     }
 
+    /**
+     * Gets the number of children a node may have under progressive widening.
+     * @param node The node
+     * @return ceil(coefficient * (plays + 1)^exponent), at least one
+     */
+    private int allowedChildren(HrGameNode<A> node) {
+        return Math.max(1, (int) Math.ceil(wideningCoefficient * Math.pow(node.getPlays() + 1, wideningExponent)));
+    }
+
+    /**
+     * Orders the actions of a Risk state by their prior for the player to move, best first.
+     * Ties keep the order of the engine.
+     * @param game The state
+     * @param actions Its possible actions
+     * @return The ordered actions
+     */
+    private List<A> orderByPrior(Risk game, Collection<A> actions) {
+        RiskMetricsCalculator calculator = new RiskMetricsCalculator(game.getBoard(), game.getCurrentPlayer());
+        List<A> ordered = new ArrayList<>(actions);
+        double[] priors = new double[ordered.size()];
+        Integer[] order = new Integer[ordered.size()];
+        for (int i = 0; i < priors.length; i++) {
+            priors[i] = calculator.getActionPrior((RiskAction) ordered.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(priors[b], priors[a]));
+        List<A> sorted = new ArrayList<>(ordered.size());
+        for (int i : order) {
+            sorted.add(ordered.get(i));
+        }
+        return sorted;
+    }
+
     /**
      * Simulation phase of MCTS.
      * Runs a random playout from the given node to determine the outcome.
@@ -193,7 +981,7 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
      * @return true if the simulation resulted in a win, false otherwise
      */
     public boolean simulation(Tree<HrGameNode<A>> tree, int simulationsAtLeast, double buffer) {
-        if (shouldStopComputation()) return false;
+        if (shouldStopComputation()) return abortIteration();
 
         int simulationsDone = tree.getNode().getPlays();
         if (simulationsDone < simulationsAtLeast && !shouldStopComputation(buffer)) {
@@ -203,18 +991,121 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
     }
 
     /**
-     * Performs a single simulation from the given node.
+     * Leaf-parallel simulation phase of MCTS.
+     * Runs {@link #getLeafParallelism()} playouts from the given node concurrently.
+     * @param tree Node to simulate from
+     * @return Number of playouts that resulted in a win
+     */
+    public int simulations(Tree<HrGameNode<A>> tree) {
+        int provenValue = tree.getNode().getProvenValue();
+        if (provenValue != HrGameNode.UNPROVEN) {
+            return provenValue == HrGameNode.PROVEN_WIN ? leafParallelism : 0;
+        }
+        return simulations(gameOf(tree));
+    }
+
+    /**
+     * Runs {@link #getLeafParallelism()} playouts from the given game state concurrently.
+     * @param game Game state to simulate from
+     * @return Number of playouts that resulted in a win
+     */
+    private int simulations(Game<A, ?> game) {
+        if (playoutPool == null) {
+            return simulation(game) ? 1 : 0;
+        }
+        int[] results = playoutPool.submit(() -> IntStream.range(0, leafParallelism)
+                .parallel()
+                .map(i -> playout(game))
+                .toArray()).join();
+        int wins = 0;
+        for (int result : results) {
+            if (result == PLAYOUT_ABORTED) {
+                abortIteration();
+            } else {
+                wins += result;
+            }
+        }
+        return wins;
+    }
+
+    /**
+     * Performs a single simulation from the given node. Proven nodes return their value without a playout.
      * @param tree Node to simulate from
      * @return true if the simulation resulted in a win, false otherwise
      */
     private boolean simulation(Tree<HrGameNode<A>> tree) {
-        if (shouldStopComputation()) return false;
+        int provenValue = tree.getNode().getProvenValue();
+        if (provenValue != HrGameNode.UNPROVEN) {
+            return provenValue == HrGameNode.PROVEN_WIN;
+        }
+        return simulation(gameOf(tree));
+    }
+
+    /**
+     * Performs a single simulation from the given game state.
+     * @param game Game state to simulate from
+     * @return true if the simulation resulted in a win, false otherwise
+     */
+    private boolean simulation(Game<A, ?> game) {
+        int result = playout(game);
+        if (result == PLAYOUT_ABORTED) {
+            return abortIteration();
+        }
+        return result == PLAYOUT_WIN;
+    }
+
+    /**
+     * Marks the current iteration of the thread as out of time, if iterations are atomic.
+     * @return false, the result of a simulation that ran out of time
+     */
+    private boolean abortIteration() {
+        if (atomicIterations) {
+            iterationAborted.set(Boolean.TRUE);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the current iteration of the thread ran out of time and resets the mark.
+     * @return true if the iteration has to be discarded
+     */
+    private boolean consumeAbortedIteration() {
+        if (!atomicIterations || !iterationAborted.get()) {
+            return false;
+        }
+        iterationAborted.set(Boolean.FALSE);
+        return true;
+    }
+
+    /**
+     * Plays a game state to its end or the maximum depth and evaluates the result.
+     * @param game Game state to simulate from
+     * @return {@link #PLAYOUT_WIN}, {@link #PLAYOUT_LOSS}, or {@link #PLAYOUT_ABORTED} if the time ran out first
+     */
+    private int playout(Game<A, ?> game) {
+        if (shouldStopComputation()) return PLAYOUT_ABORTED;
+        // Playouts run on many threads at once, which would all contend on the seed of a shared Random
+        Random random = ThreadLocalRandom.current();
+
+        // Leaf-parallel playouts run on pool threads, whose actions the backpropagation never sees
+        Map<A, Integer> played = raveEquivalence > 0 && leafParallelism == 1 && compactTree == null
+                ? amafActions.get() : null;
+        if (played != null) {
+            played.clear();
+        }
+
+        if (mutablePlayouts && game instanceof Risk) {
+            RiskPlayoutBoard board = loadPlayoutBoard((Risk) game);
+            if (board != null) {
+                board.playout(MAX_SIMULATION_DEPTH, random);
+                return random.nextDouble() < board.getScore(playerId) ? PLAYOUT_WIN : PLAYOUT_LOSS;
+            }
+        }
 
-        Game<A, ?> game = tree.getNode().getGame();
         int depth = 0;
 
         while (!game.isGameOver() && depth < MAX_SIMULATION_DEPTH) {
-            if (shouldStopComputation()) return false;
+            if (shouldStopComputation()) return PLAYOUT_ABORTED;
 
             int currentPlayer = game.getCurrentPlayer();
 
@@ -235,20 +1126,43 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
                 selectedAction = Util.selectRandom(actions, random);
             }
 
+            if (played != null) {
+                played.merge(selectedAction, 1 << currentPlayer, (a, b) -> a | b);
+            }
             game = game.doAction(selectedAction);
             depth++;
         }
 
-        return hasWon(game);
+        return hasWon(game) ? PLAYOUT_WIN : PLAYOUT_LOSS;
+    }
+
+    /**
+     * Loads a Risk state into the playout board of the current thread.
+     * Chance nodes are resolved by the engine first, since the board starts at a player's move.
+     * @param game The state to load
+     * @return The loaded board, or null if the state is not supported by the playout board
+     */
+    private RiskPlayoutBoard loadPlayoutBoard(Risk game) {
+        for (int i = 0; i < MAX_SIMULATION_DEPTH && game.getCurrentPlayer() < 0 && !game.isGameOver(); i++) {
+            game = (Risk) game.doAction();
+        }
+        RiskBoard riskBoard = game.getBoard();
+        RiskPlayoutBoard board = PLAYOUT_BOARDS.get();
+        if (board == null || !board.fits(riskBoard)) {
+            board = new RiskPlayoutBoard(riskBoard);
+            PLAYOUT_BOARDS.set(board);
+        }
+        return board.load(game, riskBoard) ? board : null;
     }
 
     /**
      * Determines if the given game state is a winning state for this agent.
+     * With atomic iterations, a finished playout is always evaluated.
      * @param game Game state to evaluate
      * @return true if the game state is a win, false otherwise
      */
     private boolean hasWon(Game<A, ?> game) {
-        if (shouldStopComputation()) return false;
+        if (!atomicIterations && shouldStopComputation()) return false;
 
         double[] evaluation = game.getGameUtilityValue();
         double score = Util.scoreOutOfUtility(evaluation, playerId);
@@ -262,21 +1176,34 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
 
         if (tie && !win) {
             // Get the game state score to influence the probability
-            HrGameNode<A> node = new HrGameNode<>(game);
-            if (!node.hasGameStateScore()) {
-                RiskMetricsCalculator calculator = new RiskMetricsCalculator((Risk) game, playerId);
-                node.setGameStateScore(calculator.getGameStateScore());
-            }
+            RiskBoard board = ((Risk) game).getBoard();
+            double gameStateScore = gameStateScore(board, RiskZobrist.hash(board, game.getCurrentPlayer()));
             
             // Use gameStateScore to bias the random decision
             // Higher gameStateScore means higher probability of winning
-            double gameStateScore = node.getGameStateScore();
-            return random.nextDouble() < gameStateScore;
+            return ThreadLocalRandom.current().nextDouble() < gameStateScore;
         }
         
         return win;
     }
 
+    /**
+     * Gets the proven value of a terminal state.
+     * @param game The state
+     * @return {@link HrGameNode#PROVEN_WIN} or {@link HrGameNode#PROVEN_LOSS} if the game is over
+     *         and decided for this agent's player, otherwise {@link HrGameNode#UNPROVEN}
+     */
+    private int terminalValue(Game<A, ?> game) {
+        if (!game.isGameOver()) {
+            return HrGameNode.UNPROVEN;
+        }
+        double score = Util.scoreOutOfUtility(game.getGameUtilityValue(), playerId);
+        if (score == 1D) {
+            return HrGameNode.PROVEN_WIN;
+        }
+        return score == 0D ? HrGameNode.PROVEN_LOSS : HrGameNode.UNPROVEN;
+    }
+
     /**
      * Backpropagation phase of MCTS.
      * Updates the statistics of all nodes along the path from leaf to root.
@@ -284,33 +1211,396 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
      * @param win Whether the simulation resulted in a win
      */
     public void backpropagation(Tree<HrGameNode<A>> tree, boolean win) {
-        while (!tree.isRoot() && !shouldStopComputation()) {
+        backpropagation(tree, win ? 1 : 0, 1);
+    }
+
+    /**
+     * Backpropagation phase of MCTS for a batch of simulations.
+     * Updates the statistics of all nodes along the path from leaf to root in a single pass.
+     * With atomic iterations, an iteration whose simulation ran out of time only releases its virtual loss.
+     * @param tree Leaf node to start backpropagation from
+     * @param wins Number of simulations that resulted in a win
+     * @param plays Number of simulations performed
+     */
+    public void backpropagation(Tree<HrGameNode<A>> tree, int wins, int plays) {
+        if (virtualLoss > 0) {
+            releaseVirtualLoss(tree);
+        }
+        if (consumeAbortedIteration()) {
+            amafActions.get().clear();
+            return;
+        }
+        if (raveEquivalence > 0) {
+            updateAmaf(tree, wins, plays);
+        }
+        propagateProof(tree);
+        // A finished simulation is always recorded up to the root, even if the time is up meanwhile
+        while (!tree.isRoot()) {
             tree = tree.getParent();
-            tree.getNode().incPlays();
-            if (win) {
-                tree.getNode().incWins();
+            tree.getNode().addPlays(plays);
+            if (wins > 0) {
+                tree.getNode().addWins(wins);
+            }
+            if (transpositionTable != null) {
+                transpositionTable.record(tree.getNode().getHash(), wins, plays);
             }
         }
     }
+
+    /**
+     * Proves the nodes along the path from leaf to root as far as their children allow (MCTS-Solver).
+     * Stops at the first node that stays unproven, since its ancestors cannot change either.
+     * @param tree Leaf node the simulation started from
+     */
+    private void propagateProof(Tree<HrGameNode<A>> tree) {
+        while (true) {
+            HrGameNode<A> node = tree.getNode();
+            if (!node.isProven()) {
+                int provenValue = provenValue(tree);
+                if (provenValue == HrGameNode.UNPROVEN) {
+                    return;
+                }
+                node.setProvenValue(provenValue);
+            }
+            if (tree.isRoot()) {
+                return;
+            }
+            tree = tree.getParent();
+        }
+    }
+
+    /**
+     * Determines the proven value of a node from its children.
+     * The player to move proves a node by a single child that is won for them, but it is only
+     * lost for them once the node is fully expanded and every child is lost. Chance nodes
+     * are not chosen by anyone, so they are only proven once every outcome is proven to the same
+     * value; collapsed chance nodes do not know all of their outcomes and are never proven.
+     * @param tree The node
+     * @return The proven value from the point of view of this agent's player
+     */
+    private int provenValue(Tree<HrGameNode<A>> tree) {
+        HrGameNode<A> node = tree.getNode();
+        int player = node.getCurrentPlayer();
+        List<Tree<HrGameNode<A>>> children = childrenOf(tree);
+        if (children.isEmpty() || (player < 0 && collapsedChanceNodes)) {
+            return HrGameNode.UNPROVEN;
+        }
+        if (player < 0 && !node.isFullyExpanded()) {
+            return HrGameNode.UNPROVEN;
+        }
+        if (player < 0) {
+            int outcome = children.get(0).getNode().getProvenValue();
+            for (Tree<HrGameNode<A>> child : children) {
+                if (child.getNode().getProvenValue() != outcome) {
+                    return HrGameNode.UNPROVEN;
+                }
+            }
+            return outcome;
+        }
+        int favorable = player == playerId ? HrGameNode.PROVEN_WIN : HrGameNode.PROVEN_LOSS;
+        boolean allUnfavorable = true;
+        for (Tree<HrGameNode<A>> child : children) {
+            int provenValue = child.getNode().getProvenValue();
+            if (provenValue == favorable) {
+                return favorable;
+            }
+            allUnfavorable &= provenValue == -favorable;
+        }
+        if (allUnfavorable && node.isFullyExpanded()) {
+            return -favorable;
+        }
+        return HrGameNode.UNPROVEN;
+    }
+
+    /**
+     * Checks whether the value of the root is proven, so further search cannot change it.
+     * @return true if the root is proven won or lost
+     */
+    public boolean isSolved() {
+        return tree.getNode().isProven();
+    }
+
+    /**
+     * Gets the actions of a root child that is proven to be won.
+     * @return The actions leading to the child, or null if no root child is proven won
+     */
+    public List<A> getProvenWinningActions() {
+        if (compactTree != null || tree.getNode().getProvenValue() != HrGameNode.PROVEN_WIN) {
+            return null;
+        }
+        for (Tree<HrGameNode<A>> child : childrenOf(tree)) {
+            if (child.getNode().getProvenValue() == HrGameNode.PROVEN_WIN) {
+                return child.getNode().getActions();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Updates the AMAF statistics of the siblings along the path from leaf to root.
+     * Walking up, the actions below the current node are collected starting with the playout;
+     * every child of the current node whose action was played by the node's player counts the
+     * simulation. Children of chance nodes keep no AMAF statistics.
+     * @param tree Leaf node the simulation started from
+     * @param wins Number of simulations that resulted in a win
+     * @param plays Number of simulations performed
+     */
+    private void updateAmaf(Tree<HrGameNode<A>> tree, int wins, int plays) {
+        Map<A, Integer> played = amafActions.get();
+        while (true) {
+            int player = tree.getNode().getCurrentPlayer();
+            if (player >= 0 && !played.isEmpty()) {
+                int mask = 1 << player;
+                for (Tree<HrGameNode<A>> child : childrenOf(tree)) {
+                    Integer players = played.get(child.getNode().getActions().get(0));
+                    if (players != null && (players & mask) != 0) {
+                        child.getNode().addRaveResult(wins, plays);
+                    }
+                }
+            }
+            if (tree.isRoot()) {
+                break;
+            }
+            Tree<HrGameNode<A>> parent = tree.getParent();
+            int parentPlayer = parent.getNode().getCurrentPlayer();
+            if (parentPlayer >= 0) {
+                for (A action : tree.getNode().getActions()) {
+                    played.merge(action, 1 << parentPlayer, (a, b) -> a | b);
+                }
+            }
+            tree = parent;
+        }
+        played.clear();
+    }
+
+    /**
+     * Removes the virtual loss added during selection from every node on the path to the root.
+     * @param tree Leaf node the selection ended in
+     */
+    private void releaseVirtualLoss(Tree<HrGameNode<A>> tree) {
+        while (!tree.isRoot()) {
+            tree.getNode().removeVirtualLoss(virtualLoss);
+            tree = tree.getParent();
+        }
+    }
+
+    /**
+     * Looks up the game state score of a Risk state in the evaluation cache.
+     * @param hash Hash of the state
+     * @return The cached score, or NaN if there is none or no cache is set
+     */
+    private double cachedGameStateScore(long hash) {
+        return evaluationCache != null ? evaluationCache.get(hash) : Double.NaN;
+    }
+
+    private void cacheGameStateScore(long hash, double score) {
+        if (evaluationCache != null) {
+            evaluationCache.put(hash, (float) score);
+        }
+    }
+
+    /**
+     * Gets the game state score of a Risk state from the evaluation cache or by evaluating it from scratch.
+     * @param board The board of the state
+     * @param hash Hash of the state
+     * @return The game state score
+     */
+    private double gameStateScore(RiskBoard board, long hash) {
+        double score = cachedGameStateScore(hash);
+        if (Double.isNaN(score)) {
+            score = new RiskMetricsCalculator(board, playerId).getGameStateScore();
+            cacheGameStateScore(hash, score);
+        }
+        return score;
+    }
+
+    /**
+     * Creates a fully evaluated calculator of a Risk state, from which the scores of its children are derived.
+     * The state's own score is cached on the way.
+     * @param board The board of the state
+     * @param hash Hash of the state
+     * @return The calculator
+     */
+    private RiskMetricsCalculator evaluatedCalculator(RiskBoard board, long hash) {
+        RiskMetricsCalculator calculator = new RiskMetricsCalculator(board, playerId);
+        cacheGameStateScore(hash, calculator.getGameStateScore());
+        return calculator;
+    }
+
+    /**
+     * Gets the game state of a node, replaying the action edges of action-replay nodes
+     * from the nearest ancestor that stores its state.
+     * @param tree The node
+     * @return The game state of the node
+     */
+    private Game<A, ?> gameOf(Tree<HrGameNode<A>> tree) {
+        Game<A, ?> game = tree.getNode().getGame();
+        if (game != null) {
+            return game;
+        }
+        if (stateCache != null) {
+            game = stateCache.get(tree);
+            if (game != null) {
+                return game;
+            }
+        }
+        game = gameOf(tree.getParent());
+        for (A action : tree.getNode().getActions()) {
+            game = game.doAction(action);
+        }
+        if (stateCache != null) {
+            stateCache.put(tree, game);
+        }
+        return game;
+    }
+
+    /**
+     * Drops all cached replayed states, e.g. after the tree was re-rooted.
+     */
+    private void clearStateCache() {
+        if (stateCache != null) {
+            stateCache.clear();
+        }
+    }
+
+    /**
+     * Takes a consistent snapshot of the children of a node, which may be expanded concurrently.
+     * @param tree Node to get the children of
+     * @return Copy of the children list
+     */
+    private List<Tree<HrGameNode<A>>> childrenOf(Tree<HrGameNode<A>> tree) {
+        synchronized (tree) {
+            return tree.getChildren();
+        }
+    }
+
+    /**
+     * Runs one MCTS iteration on the compact tree.
+     * Game states are not stored in the tree, so selection replays the chosen actions from the
+     * root state; the states of the path only live until the iteration ends.
+     */
+    public void compactIteration() {
+        Game<A, ?> game = tree.getNode().getGame();
+        int node = 0;
+
+        // Selection
+        while (!compactTree.isLeaf(node) && !shouldStopComputation()) {
+            int child;
+            if (game.getCurrentPlayer() < 0) {
+                child = compactTree.findChild(node, game.determineNextAction());
+                if (child < 0) {
+                    break;
+                }
+            } else {
+                child = selectCompactChild(node);
+            }
+            game = game.doAction(compactTree.getAction(child));
+            node = child;
+        }
+
+        // Expansion
+        if (compactTree.isLeaf(node) && !game.isGameOver() && !shouldStopComputation() && !isOverBudget()) {
+            expandCompact(node, game);
+        }
+
+        // Simulation
+        int plays = leafParallelism;
+        int wins = leafParallelism > 1 ? simulations(game) : (simulation(game) ? 1 : 0);
+        if (consumeAbortedIteration()) {
+            return;
+        }
+
+        // Backpropagation, starting at the parent like for the object tree
+        while (node != 0) {
+            node = compactTree.getParent(node);
+            compactTree.addResult(node, wins, plays);
+        }
+    }
+
+    /**
+     * Selects the child of a compact tree node with the highest UCB value.
+     * @param node Index of an expanded node
+     * @return Index of the selected child
+     */
+    private int selectCompactChild(int node) {
+        int first = compactTree.getFirstChild(node);
+        int best = first;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < first + compactTree.getChildCount(node); child++) {
+            double value = upperConfidenceBound(child, exploitationConstant);
+            if (value > bestValue) {
+                bestValue = value;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds all children of a compact tree leaf along with their game state scores.
+     * The child states are only needed for scoring and are discarded afterwards.
+     * @param node Index of the leaf
+     * @param game Game state of the leaf
+     */
+    private void expandCompact(int node, Game<A, ?> game) {
+        List<A> actions = new ArrayList<>(game.getPossibleActions());
+        float[] scores = new float[actions.size()];
+        Risk risk = game instanceof Risk ? (Risk) game : null;
+        RiskBoard board = risk != null ? risk.getBoard() : null;
+        long hash = board != null ? RiskZobrist.hash(board, risk.getCurrentPlayer()) : 0L;
+        RiskMetricsCalculator parentCalculator = null;
+        for (int i = 0; i < actions.size(); i++) {
+            scores[i] = Float.NaN;
+            if (risk != null) {
+                RiskAction action = (RiskAction) actions.get(i);
+                Risk nextGame = (Risk) risk.doAction(action);
+                RiskBoard nextBoard = nextGame.getBoard();
+                int[] affectedTerritories = RiskActionDelta.affectedTerritories(risk, board, action);
+                long nextHash = RiskZobrist.update(hash, board, risk.getCurrentPlayer(),
+                        nextBoard, nextGame.getCurrentPlayer(), affectedTerritories);
+                double score = cachedGameStateScore(nextHash);
+                if (Double.isNaN(score)) {
+                    if (parentCalculator == null) {
+                        parentCalculator = evaluatedCalculator(board, hash);
+                    }
+                    score = parentCalculator.derive(nextBoard, affectedTerritories).getGameStateScore();
+                    cacheGameStateScore(nextHash, score);
+                }
+                scores[i] = (float) score;
+            }
+        }
+        compactTree.addChildren(node, actions, scores);
+    }
+
     private A selectActionWithHighestGameStateScore(Risk game, Set<A> actions) {
         A bestAction = null;
         double bestScore = Double.NEGATIVE_INFINITY;
 
         double totalVisits = actions.size(); // initial 1 visit per action
         double logTotalVisits = Math.log(totalVisits);
+        RiskBoard board = game.getBoard();
+        long hash = RiskZobrist.hash(board, game.getCurrentPlayer());
+        RiskMetricsCalculator parentCalculator = null;
 
         for (A action : actions) {
             // Generate the resulting game state
             Risk nextGame = (Risk) game.doAction((RiskAction) action);
+            RiskBoard nextBoard = nextGame.getBoard();
+            int[] affectedTerritories = RiskActionDelta.affectedTerritories(game, board, (RiskAction) action);
+            long nextHash = RiskZobrist.update(hash, board, game.getCurrentPlayer(),
+                    nextBoard, nextGame.getCurrentPlayer(), affectedTerritories);
 
-            // Use or initialize node with game state score
-            HrGameNode<RiskAction> node = new HrGameNode<>(nextGame);
-            if (!node.hasGameStateScore()) {
-                RiskMetricsCalculator calculator = new RiskMetricsCalculator(nextGame, playerId);
-                node.setGameStateScore(calculator.getGameStateScore());
+            // Use the cached game state score or derive it from the current state
+            double gameStateScore = cachedGameStateScore(nextHash);
+            if (Double.isNaN(gameStateScore)) {
+                if (parentCalculator == null) {
+                    parentCalculator = evaluatedCalculator(board, hash);
+                }
+                gameStateScore = parentCalculator.derive(nextBoard, affectedTerritories).getGameStateScore();
+                cacheGameStateScore(nextHash, gameStateScore);
             }
 
-            double exploitation = node.getGameStateScore();
+            double exploitation = gameStateScore;
             double exploration = exploitationConstant * Math.sqrt(logTotalVisits); // visits = 1
             double score = exploitation + exploration;
 
@@ -332,21 +1622,70 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
      * @return UCB value for the node
      */
     private double upperConfidenceBound(Tree<HrGameNode<A>> tree, double c) {
-        double w = tree.getNode().getPlays();
-        double n = Math.max(tree.getNode().getPlays(), 1);
+        HrGameNode<A> node = tree.getNode();
+        if (node.isProven() && !tree.isRoot()) {
+            // Proven children decide for the player to move: always take a won one, never a lost one
+            int mover = tree.getParent().getNode().getCurrentPlayer();
+            if (mover >= 0) {
+                boolean won = node.getProvenValue() == (mover == playerId ? HrGameNode.PROVEN_WIN : HrGameNode.PROVEN_LOSS);
+                return won ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+            }
+        }
+        // Virtual losses count as plays without wins, lowering the estimate while a thread is below
+        double w = node.getWins();
+        double n = Math.max(node.getPlays() + node.getVirtualLoss(), 1);
         double N = n;
         if (!tree.isRoot()) {
-            N = tree.getParent().getNode().getPlays();
+            HrGameNode<A> parent = tree.getParent().getNode();
+            N = parent.getPlays() + parent.getVirtualLoss();
         }
-        return (w / n) + c * Math.sqrt(Math.log(N) / n);
+        double winRate = w / n;
+        if (transpositionTable != null) {
+            // Transpositions share their win rate, the exploration term stays per edge
+            double pooledWinRate = transpositionTable.getWinRate(node.getHash(), node.getVirtualLoss());
+            if (!Double.isNaN(pooledWinRate)) {
+                winRate = pooledWinRate;
+            }
+        }
+        int ravePlays = node.getRavePlays();
+        if (raveEquivalence > 0 && ravePlays > 0) {
+            double beta = Math.sqrt(raveEquivalence / (3 * n + raveEquivalence));
+            winRate = (1 - beta) * winRate + beta * node.getRaveWins() / ravePlays;
+        }
+        return upperConfidenceBound(winRate, n, N, c);
+    }
+
+    /**
+     * Calculates the Upper Confidence Bound (UCB) value for a node of the compact tree.
+     * @param node Index of the node
+     * @param c Exploration constant
+     * @return UCB value for the node
+     */
+    private double upperConfidenceBound(int node, double c) {
+        double n = Math.max(compactTree.getPlays(node), 1);
+        double N = compactTree.getPlays(compactTree.getParent(node));
+        return upperConfidenceBound(compactTree.getWins(node) / n, n, N, c);
+    }
+
+    /**
+     * The UCB1 formula shared by both tree storages.
+     * @param winRate Estimated win rate of the node
+     * @param n Plays of the node, at least one
+     * @param N Plays of the parent
+     * @param c Exploration constant
+     * @return UCB value
+     */
+    private static double upperConfidenceBound(double winRate, double n, double N, double c) {
+        return winRate + c * Math.sqrt(Math.log(N) / n);
     }
 
     /**
      * Checks if computation should stop based on time constraints.
+     * Only reads the deadline flag, see {@link #setSearchTime(long, TimeUnit)}.
      * @return true if computation should stop, false otherwise
      */
     private boolean shouldStopComputation() {
-        return System.nanoTime() - START_TIME >= TIMEOUT;
+        return timeUp.get();
     }
 
     /**
@@ -359,6 +1698,71 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
         return (System.nanoTime() - START_TIME) - buffer >= TIMEOUT;
     }
 
+    /**
+     * Gets the children of the root with their statistics, independent of the tree storage.
+     * For the compact tree the child nodes are created on demand.
+     * @return One node per expanded root action
+     */
+    public List<HrGameNode<A>> getRootChildren() {
+        List<HrGameNode<A>> children = new ArrayList<>();
+        if (compactTree == null) {
+            // Other threads may be expanding the root meanwhile
+            synchronized (tree) {
+                for (Tree<HrGameNode<A>> child : tree.getChildren()) {
+                    children.add(child.getNode());
+                }
+            }
+            return children;
+        }
+        Game<A, ?> rootGame = tree.getNode().getGame();
+        int first = compactTree.getFirstChild(0);
+        for (int child = first; child < first + compactTree.getChildCount(0); child++) {
+            children.add(new HrGameNode<>(rootGame.doAction(compactTree.getAction(child)),
+                    compactTree.getWins(child), compactTree.getPlays(child), compactTree.getScore(child)));
+        }
+        return children;
+    }
+
+    /**
+     * Gets the number of simulations backpropagated through the root.
+     * @return Plays of the root
+     */
+    public int getRootPlays() {
+        return compactTree != null ? compactTree.getPlays(0) : tree.getNode().getPlays();
+    }
+
+    /**
+     * Gets the number of won simulations backpropagated through the root.
+     * @return Wins of the root
+     */
+    public int getRootWins() {
+        return compactTree != null ? compactTree.getWins(0) : tree.getNode().getWins();
+    }
+
+    /**
+     * Gets the number of nodes in the tree.
+     * @return The node count, including the root
+     */
+    public int getNodeCount() {
+        return compactTree != null ? compactTree.size() : tree.getNode().getSubtreeSize();
+    }
+
+    /**
+     * Estimates the heap retained by the tree, including the game states it keeps.
+     * The sizes per node and per game state are rough constants measured on the default Risk board,
+     * so the value is meant for sizing heaps, not for exact accounting.
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedBytes() {
+        Game<A, ?> rootGame = tree.getNode().getGame();
+        long gameBytes = GAME_BYTES + (rootGame != null ? (long) ACTION_RECORD_BYTES * rootGame.getNumberOfActions() : 0);
+        if (compactTree != null) {
+            return compactTree.estimateBytes() + gameBytes;
+        }
+        long states = actionReplay ? 1 + (stateCache != null ? stateCache.size() : 0) : getNodeCount();
+        return (long) getNodeCount() * NODE_BYTES + states * gameBytes;
+    }
+
     /**
      * Gets the current game tree.
      * @return The current game tree
@@ -368,10 +1772,10 @@ public class MCTSAgent<G extends Game<A, ?>, A> {
     }
 
     /**
-     * Gets the game tree move comparator.
-     * @return The game tree move comparator
+     * Gets the game node move comparator.
+     * @return The game node move comparator
      */
-    public Comparator<Tree<HrGameNode<A>>> getGameTreeMoveComparator() {
-        return gameTreeMoveComparator;
+    public Comparator<HrGameNode<A>> getGameNodeMoveComparator() {
+        return gameNodeMoveComparator;
     }
 } 
\ No newline at end of file
@@ -0,0 +1,89 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.ActionRecord;
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+
+import java.util.List;
+
+/**
+ * RiskActionDelta determines which territories a RiskAction changes.
+ * It allows per-territory data such as state hashes to be updated from a parent state
+ * instead of being recomputed over the whole board.
+ *
+ * Supported actions:
+ * - Select and reinforce: the target territory
+ * - Attack: no territory, the troops only move once the dice are rolled
+ * - Casualties and occupy: both territories of the preceding attack
+ * - Fortify: the source and the target territory
+ * - End phase: no territory
+ *
+ * Card trade-ins and bonus troops are not resolved; for those the caller has to
+ * fall back to a full recomputation.
+ */
+public final class RiskActionDelta {
+
+    private static final int[] NONE = new int[0];
+    // An occupy follows the attack and the casualties roll, so the attack is at most this far back
+    private static final int MAX_ATTACK_LOOKBACK = 3;
+
+    private RiskActionDelta() {
+    }
+
+    /**
+     * Determines the territories whose owner or troops change when applying an action.
+     * @param parent The state the action is applied to
+     * @param parentBoard The board of the parent state
+     * @param action The applied action
+     * @return The affected territory ids, or null if they cannot be determined
+     */
+    public static int[] affectedTerritories(Risk parent, RiskBoard parentBoard, RiskAction action) {
+        if (action.isEndPhase()) {
+            return NONE;
+        }
+        if (action.isCardIds() || action.isBonus()) {
+            return null;
+        }
+        int source = action.attackingId();
+        int target = action.defendingId();
+        if (source == -1 && target >= 0) {
+            // Select or reinforce
+            return new int[]{target};
+        }
+        if (source >= 0 && target >= 0) {
+            // Attacks only change territories through the following casualties
+            return parentBoard.isAttackPhase() ? NONE : new int[]{source, target};
+        }
+        RiskAction attack = lastAttack(parent);
+        if (attack == null) {
+            return null;
+        }
+        return new int[]{attack.attackingId(), attack.defendingId()};
+    }
+
+    /**
+     * Checks whether an action is an attack or a fortification, which share one encoding.
+     * @param action The action
+     * @return true if the action moves troops between two territories
+     */
+    public static boolean isTransfer(RiskAction action) {
+        return !action.isEndPhase() && action.attackingId() >= 0 && action.defendingId() >= 0;
+    }
+
+    /**
+     * Finds the attack an occupation or casualties roll belongs to.
+     * @param game The state after the attack
+     * @return The attack, or null if none of the last actions is one
+     */
+    static RiskAction lastAttack(Risk game) {
+        List<ActionRecord<RiskAction>> records = game.getActionRecords();
+        for (int i = records.size() - 1; i >= Math.max(0, records.size() - MAX_ATTACK_LOOKBACK); i--) {
+            RiskAction action = records.get(i).getAction();
+            if (isTransfer(action)) {
+                return action;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,144 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RiskMacroActions replaces the placement of reinforcements by a few macro placements.
+ * The engine offers every split of the reinforcements over every owned territory as a chain of
+ * single placements, which makes the reinforcement phase by far the widest and deepest part of a
+ * turn. A macro is a sequence of placements that is searched as a single tree edge and played
+ * one placement after the other.
+ *
+ * Macros offered:
+ * - All reinforcements on one of the best frontier territories
+ * - The reinforcements split evenly across the best two, three, ... frontier territories,
+ *   if the engine accepts the split
+ * - Every other action of the state, such as card trade-ins, as a macro of its own
+ *
+ * Frontier territories are owned territories next to an enemy, ranked by the prior of
+ * reinforcing them with all troops, see {@link RiskMetricsCalculator#getActionPrior(RiskAction)}.
+ * The initial placement of single troops is left to the engine's actions.
+ */
+public final class RiskMacroActions {
+
+    private RiskMacroActions() {
+    }
+
+    /**
+     * Builds the macro placements of a state.
+     * @param game The state, with a player to move
+     * @param frontierSize Number of best frontier territories the macros are built from
+     * @return The macros, each a non-empty list of actions, or null if the state is not a placement of several reinforcements
+     */
+    public static List<List<RiskAction>> of(Risk game, int frontierSize) {
+        RiskBoard board = game.getBoard();
+        if (!board.isReinforcementPhase() || game.getCurrentPlayer() < 0) {
+            return null;
+        }
+        Set<RiskAction> actions = game.getPossibleActions();
+        int reinforcements = 0;
+        for (RiskAction action : actions) {
+            if (isReinforcement(action)) {
+                reinforcements = Math.max(reinforcements, action.troops());
+            }
+        }
+        if (reinforcements < 2) {
+            return null;
+        }
+
+        List<List<RiskAction>> macros = new ArrayList<>();
+        List<RiskAction> allIn = new ArrayList<>();
+        for (RiskAction action : actions) {
+            if (!isReinforcement(action)) {
+                macros.add(Collections.singletonList(action));
+            } else if (action.troops() == reinforcements) {
+                allIn.add(action);
+            }
+        }
+
+        RiskMetricsCalculator calculator = new RiskMetricsCalculator(board, game.getCurrentPlayer());
+        double[] priors = new double[allIn.size()];
+        Integer[] order = new Integer[allIn.size()];
+        int frontier = 0;
+        for (int i = 0; i < priors.length; i++) {
+            priors[i] = calculator.getActionPrior(allIn.get(i));
+            order[i] = i;
+            if (priors[i] > 0) {
+                frontier++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(priors[b], priors[a]));
+        // Without an enemy in reach every territory is as good as any other
+        int best = Math.min(frontierSize, frontier > 0 ? frontier : priors.length);
+
+        for (int i = 0; i < best; i++) {
+            macros.add(Collections.singletonList(allIn.get(order[i])));
+        }
+        for (int split = 2; split <= Math.min(best, reinforcements); split++) {
+            List<RiskAction> macro = new ArrayList<>(split);
+            for (int i = 0; i < split; i++) {
+                // The remainder goes to the best territories
+                int troops = reinforcements / split + (i < reinforcements % split ? 1 : 0);
+                macro.add(RiskAction.reinforce(allIn.get(order[i]).defendingId(), troops));
+            }
+            if (isValid(game, macro)) {
+                macros.add(macro);
+            }
+        }
+        return macros;
+    }
+
+    /**
+     * Checks whether all actions of a macro can be played one after the other by the same player.
+     * Troops from traded cards must go to the territories on the cards, which may rule out a split.
+     * @param game The state the macro is applied to
+     * @param macro The actions
+     * @return true if the engine accepts every action of the macro
+     */
+    private static boolean isValid(Risk game, List<RiskAction> macro) {
+        Risk state = game;
+        for (RiskAction action : macro) {
+            if (state.getCurrentPlayer() != game.getCurrentPlayer() || !state.isValidAction(action)) {
+                return false;
+            }
+            state = (Risk) state.doAction(action);
+        }
+        return true;
+    }
+
+    /**
+     * Determines the territories a macro changes, see {@link RiskActionDelta#affectedTerritories}.
+     * Placements only change their target, so the union over the single actions is exact.
+     * @param parent The state the macro is applied to
+     * @param parentBoard The board of the parent state
+     * @param macro The applied actions
+     * @return The affected territory ids, or null if they cannot be determined
+     */
+    public static int[] affectedTerritories(Risk parent, RiskBoard parentBoard, List<RiskAction> macro) {
+        if (macro.size() == 1) {
+            return RiskActionDelta.affectedTerritories(parent, parentBoard, macro.get(0));
+        }
+        int[] affected = new int[macro.size()];
+        for (int i = 0; i < affected.length; i++) {
+            RiskAction action = macro.get(i);
+            if (!isReinforcement(action)) {
+                return null;
+            }
+            affected[i] = action.defendingId();
+        }
+        return affected;
+    }
+
+    private static boolean isReinforcement(RiskAction action) {
+        return !action.isEndPhase() && !action.isCardIds() && !action.isBonus()
+                && action.attackingId() == -1 && action.defendingId() >= 0;
+    }
+}
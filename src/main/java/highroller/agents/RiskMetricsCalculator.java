@@ -1,14 +1,13 @@
 package highroller.agents;
 
 import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
 import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
 import at.ac.tuwien.ifs.sge.game.risk.board.RiskTerritory;
-import at.ac.tuwien.ifs.sge.game.risk.board.RiskContinent;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * RiskMetricsCalculator provides methods to evaluate game states and calculate various metrics
@@ -35,7 +34,7 @@ import java.util.stream.Collectors;
  *    - Higher weight when behind
  * 
  * 4. Attack Potential (0.1-0.8 weight)
- *    - Measures ability to make successful attacks
+ *    - Measures ability to make successful attacks, using exact battle win probabilities
  *    - Higher weight when ahead
  * 
  * Position Detection:
@@ -45,9 +44,16 @@ import java.util.stream.Collectors;
  * 
  * Performance Optimizations:
  * - Cached metrics and calculations
- * - Pre-calculated player territories
+ * - Pre-calculated player territories as a bitset (long words), counted with popcount
  * - Lazy initialization of expensive metrics
  * - Efficient map operations
+ * - Neighbor and continent lookups on the shared {@link RiskTopology} arrays
+ * - Continent progress and enemy-neighbor tests as word operations against topology masks
+ * - Troop totals gathered in the single pass over the board that builds the bitset
+ * - Battle win probabilities read from the precomputed {@link BattleOutcomeTable}
+ * - Cheap action priors computed on the current state, without applying the action
+ * - Child states derived from their parent's calculator by re-evaluating only the territories
+ *   an action changed and their neighbors, see {@link #derive}
  */
 public class RiskMetricsCalculator {
 
@@ -62,22 +68,27 @@ public class RiskMetricsCalculator {
     
     // Cache for frequently accessed data
     private final Map<Integer, RiskTerritory> territories;
-    private final Map<Integer, RiskContinent> continents;
-    private final Set<Integer> playerTerritories;
+    private final RiskTopology topology;
+    private final BattleOutcomeTable battles;
+    private final int words;
+    // Bit t of word t / 64 is set if the player owns territory t
+    private final long[] playerTerritories;
+    // Troops per territory id, 0 for ids without a territory
+    private final int[] troops;
+    private final int numberOfTerritories;
     
     // Cached metrics
-    private int totalGameTroops = -1;
-    private int playerTroops = -1;
-    private int playerTerritoryCount = -1;
+    private final int totalGameTroops;
+    private final int playerTroops;
+    private final int playerTerritoryCount;
     private double territoryRatio = -1;
     private double troopRatio = -1;
     private boolean hasSignificantAdvantage = false;
     private boolean isBehindInTroops = false;
-    private Map<Integer, Double> attackPotentialCache;
+    // Attack potential per territory id, NaN until calculated
+    private double[] attackPotentialCache;
     private Double overallAttackPotential = null;
     private Double continentScore = null;
-    private Map<Integer, Integer> continentTerritoryCounts = null;
-    private Map<Integer, Integer> playerContinentTerritoryCounts = null;
 
     /**
      * Creates a new RiskMetricsCalculator for the specified game state and player.
@@ -85,39 +96,166 @@ public class RiskMetricsCalculator {
      * @param playerId The ID of the player to calculate metrics for
      */
     public RiskMetricsCalculator(Risk game, int playerId) {
-        if (game == null) {
-            throw new IllegalArgumentException("Game cannot be null");
-        }
+        this(boardOf(game), playerId);
+    }
+
+    /**
+     * Creates a new RiskMetricsCalculator for the specified board and player.
+     * Avoids another board copy when the caller already obtained the board.
+     * @param board The board of the current Risk game state
+     * @param playerId The ID of the player to calculate metrics for
+     */
+    public RiskMetricsCalculator(RiskBoard board, int playerId) {
         if (playerId < 0) {
             throw new IllegalArgumentException("Player ID must be non-negative");
         }
         
-        this.board = game.getBoard();
+        this.board = board;
         if (this.board == null) {
             throw new IllegalStateException("Game board cannot be null");
         }
         
         this.playerId = playerId;
         this.territories = board.getTerritories();
-        this.continents = board.getContinents();
         
-        if (this.territories == null || this.continents == null) {
+        if (this.territories == null || board.getContinents() == null) {
             throw new IllegalStateException("Board territories or continents cannot be null");
         }
+        this.topology = RiskTopology.of(board);
+        this.battles = BattleOutcomeTable.of(board);
+        this.words = topology.getWords();
+        this.numberOfTerritories = territories.size();
         
-        // Pre-calculate player territories for faster access
-        this.playerTerritories = territories.entrySet().stream()
-                .filter(e -> e.getValue().getOccupantPlayerId() == playerId)
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
-        
-        // Initialize attack potential cache
-        this.attackPotentialCache = new HashMap<>();
+        // Pre-calculate player territories and troop totals in one pass
+        this.playerTerritories = new long[words];
+        this.troops = new int[topology.getNumberOfTerritories()];
+        int gameTroops = 0;
+        int ownTroops = 0;
+        for (Map.Entry<Integer, RiskTerritory> entry : territories.entrySet()) {
+            int territoryId = entry.getKey();
+            RiskTerritory territory = entry.getValue();
+            int territoryTroops = territory.getTroops();
+            troops[territoryId] = territoryTroops;
+            gameTroops += territoryTroops;
+            if (territory.getOccupantPlayerId() == playerId) {
+                playerTerritories[territoryId >>> 6] |= 1L << territoryId;
+                ownTroops += territoryTroops;
+            }
+        }
+        this.totalGameTroops = gameTroops;
+        this.playerTroops = ownTroops;
+        int count = 0;
+        for (long word : playerTerritories) {
+            count += Long.bitCount(word);
+        }
+        this.playerTerritoryCount = count;
+    }
+
+    /**
+     * Creates the calculator of a child state from the calculator of its parent.
+     * Copies the parent's ownership bitset, troop array and cached attack potentials and
+     * updates only the affected territories.
+     * @param parent Calculator of the parent state
+     * @param board Board of the child state
+     * @param affectedTerritories Territories whose owner or troops differ from the parent
+     */
+    private RiskMetricsCalculator(RiskMetricsCalculator parent, RiskBoard board, int[] affectedTerritories) {
+        this.board = board;
+        this.playerId = parent.playerId;
+        this.territories = board.getTerritories();
+        this.topology = parent.topology;
+        this.battles = parent.battles;
+        this.words = parent.words;
+        this.numberOfTerritories = parent.numberOfTerritories;
+        this.playerTerritories = parent.playerTerritories.clone();
+        this.troops = parent.troops.clone();
+
+        int gameTroops = parent.totalGameTroops;
+        int ownTroops = parent.playerTroops;
+        int count = parent.playerTerritoryCount;
+        for (int territoryId : affectedTerritories) {
+            int oldTroops = troops[territoryId];
+            boolean wasOwned = ownsTerritory(territoryId);
+            int newTroops = board.getTerritoryTroops(territoryId);
+            boolean isOwned = board.getTerritoryOccupantId(territoryId) == playerId;
+            troops[territoryId] = newTroops;
+            gameTroops += newTroops - oldTroops;
+            if (wasOwned) {
+                ownTroops -= oldTroops;
+                count--;
+                playerTerritories[territoryId >>> 6] &= ~(1L << territoryId);
+            }
+            if (isOwned) {
+                ownTroops += newTroops;
+                count++;
+                playerTerritories[territoryId >>> 6] |= 1L << territoryId;
+            }
+        }
+        this.totalGameTroops = gameTroops;
+        this.playerTroops = ownTroops;
+        this.playerTerritoryCount = count;
+
+        if (parent.attackPotentialCache != null) {
+            attackPotentialCache = parent.attackPotentialCache.clone();
+            // A potential depends on the territory and its neighbors, and adjacency is symmetric
+            int[] neighbors = topology.getNeighbors();
+            for (int territoryId : affectedTerritories) {
+                attackPotentialCache[territoryId] = Double.NaN;
+                for (int i = topology.neighborStart(territoryId); i < topology.neighborEnd(territoryId); i++) {
+                    attackPotentialCache[neighbors[i]] = Double.NaN;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the calculator of a child state from this calculator, which must belong to its parent.
+     * Only the territories changed by the action and their neighbors are re-evaluated, every other
+     * value is taken over from this calculator. All sums are taken in territory id order, so the
+     * result is exactly the one of a fresh calculator for the child board.
+     * Attack potentials are only reused if they were calculated here before, e.g. by {@link #getGameStateScore()}.
+     * @param childBoard Board of the child state
+     * @param affectedTerritories Territories changed by the action as returned by
+     *                            {@link RiskActionDelta#affectedTerritories}, or null if unknown
+     * @return Calculator for the child state and the same player
+     */
+    public RiskMetricsCalculator derive(RiskBoard childBoard, int[] affectedTerritories) {
+        if (affectedTerritories == null || RiskTopology.of(childBoard) != topology) {
+            return new RiskMetricsCalculator(childBoard, playerId);
+        }
+        return new RiskMetricsCalculator(this, childBoard, affectedTerritories);
+    }
+
+    private static RiskBoard boardOf(Risk game) {
+        if (game == null) {
+            throw new IllegalArgumentException("Game cannot be null");
+        }
+        return game.getBoard();
+    }
+
+    private boolean ownsTerritory(int territoryId) {
+        return (playerTerritories[territoryId >>> 6] & (1L << territoryId)) != 0;
+    }
+
+    /**
+     * Checks whether a territory borders a territory not owned by the player.
+     * @param territoryId The territory
+     * @return true if any neighbor is owned by someone else
+     */
+    private boolean hasEnemyNeighbor(int territoryId) {
+        long[] neighborMasks = topology.getNeighborMasks();
+        int offset = territoryId * words;
+        for (int w = 0; w < words; w++) {
+            if ((neighborMasks[offset + w] & ~playerTerritories[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void updateAdvantageMetrics() {
         if (territoryRatio == -1 || troopRatio == -1) {
-            territoryRatio = (double) getTerritoryCount() / (board.getTerritories().size() - getTerritoryCount());
+            territoryRatio = (double) getTerritoryCount() / (numberOfTerritories - getTerritoryCount());
             troopRatio = (double) getTotalTroopStrength() / (getTotalGameTroops() - getTotalTroopStrength());
             hasSignificantAdvantage = territoryRatio > 1.5 && troopRatio > 1.5;
             isBehindInTroops = troopRatio < 0.8;
@@ -129,9 +267,6 @@ public class RiskMetricsCalculator {
      * @return The number of territories owned by the player
      */
     public int getTerritoryCount() {
-        if (playerTerritoryCount == -1) {
-            playerTerritoryCount = playerTerritories.size();
-        }
         return playerTerritoryCount;
     }
 
@@ -140,11 +275,6 @@ public class RiskMetricsCalculator {
      * @return The total number of troops in the game
      */
     public int getTotalGameTroops() {
-        if (totalGameTroops == -1) {
-            totalGameTroops = territories.values().stream()
-                    .mapToInt(RiskTerritory::getTroops)
-                    .sum();
-        }
         return totalGameTroops;
     }
 
@@ -153,79 +283,106 @@ public class RiskMetricsCalculator {
      * @return The total number of troops owned by the player
      */
     public int getTotalTroopStrength() {
-        if (playerTroops == -1) {
-            playerTroops = playerTerritories.stream()
-                    .mapToInt(id -> territories.get(id).getTroops())
-                    .sum();
-        }
         return playerTroops;
     }
 
     /**
      * Calculates the attack potential of a territory.
-     * Favors territories with superior numbers against neighbors.
-     * Implements aggressive attack strategy rules:
-     * - Strongly favors attacks with 2:1 or better troop ratio
-     * - Requires at least 5 troops for equal-number attacks
-     * - Penalizes attacks with inferior numbers
+     * Favors territories with superior numbers against neighbors: the potential is the
+     * average probability of conquering an enemy neighbor when attacking with every troop
+     * but one until the battle is decided, as given by the {@link BattleOutcomeTable}.
+     * How aggressively the potential is weighted depends on the player's position,
+     * see {@link #getGameStateScore()}.
      * 
      * @param territoryId The territory to evaluate
      * @return A score between 0 and 1 indicating attack potential
      */
     public double getAttackPotential(int territoryId) {
+        if (territoryId < 0 || territoryId >= troops.length || !ownsTerritory(territoryId)) {
+            return 0.0;
+        }
         // Check cache first
-        return attackPotentialCache.computeIfAbsent(territoryId, this::calculateAttackPotential);
+        if (attackPotentialCache == null) {
+            attackPotentialCache = new double[troops.length];
+            Arrays.fill(attackPotentialCache, Double.NaN);
+        }
+        double potential = attackPotentialCache[territoryId];
+        if (Double.isNaN(potential)) {
+            potential = calculateAttackPotential(territoryId);
+            attackPotentialCache[territoryId] = potential;
+        }
+        return potential;
     }
 
     private double calculateAttackPotential(int territoryId) {
-        RiskTerritory territory = territories.get(territoryId);
-        if (territory == null || territory.getOccupantPlayerId() != playerId) {
-            return 0.0;
-        }
-
-        int attackerTroops = territory.getTroops();
+        int attackerTroops = troops[territoryId];
         if (attackerTroops <= 1) {
             return 0.0;
         }
 
-        Set<Integer> neighbors = board.neighboringEnemyTerritories(territoryId);
-        if (neighbors.isEmpty()) {
-            return 0.0;
+        int[] neighbors = topology.getNeighbors();
+        int enemyNeighbors = 0;
+        double totalPotential = 0.0;
+        for (int i = topology.neighborStart(territoryId); i < topology.neighborEnd(territoryId); i++) {
+            int neighbor = neighbors[i];
+            if (!topology.isTerritory(neighbor) || ownsTerritory(neighbor)) continue;
+            enemyNeighbors++;
+            
+            totalPotential += battles.getWinProbability(attackerTroops - 1, troops[neighbor]);
         }
 
-        updateAdvantageMetrics();
+        return enemyNeighbors > 0 ? totalPotential / enemyNeighbors : 0.0;
+    }
 
-        double totalPotential = 0.0;
-        for (int neighborId : neighbors) {
-            RiskTerritory neighbor = territories.get(neighborId);
-            if (neighbor == null) continue;
-            
-            int defenderTroops = neighbor.getTroops();
-            double localTroopRatio = (double) attackerTroops / defenderTroops;
-            
-            double potential;
-            if (hasSignificantAdvantage) {
-                if (localTroopRatio >= 1.5) {
-                    potential = 1.0;
-                } else if (localTroopRatio >= 1.0) {
-                    potential = attackerTroops >= 4 ? 0.9 : 0.5;
-                } else {
-                    potential = 0.3;
-                }
-            } else {
-                if (localTroopRatio >= 2.0) {
-                    potential = 1.0;
-                } else if (localTroopRatio >= 1.0) {
-                    potential = attackerTroops >= 5 ? 0.8 : 0.3;
-                } else {
-                    potential = 0.1;
+    /**
+     * Estimates how promising an action of the player is without applying it.
+     * Used to order actions before their child states are created, so only the ranking matters:
+     * - Reinforce: best win probability against an enemy neighbor after the reinforcement, 0 for interior territories
+     * - Attack: win probability of fighting the battle to the end
+     * - Fortify: high when moving troops from the interior to a border, low when moving them away from it
+     * - Card trade-ins: 1, since they only add troops
+     * - Everything else, including ending a phase: 0.5
+     * 
+     * @param action An action of the player in the current state
+     * @return A prior between 0 and 1
+     */
+    public double getActionPrior(RiskAction action) {
+        if (action.isCardIds()) {
+            return 1.0;
+        }
+        if (action.isEndPhase() || action.isBonus()) {
+            return 0.5;
+        }
+        int source = action.attackingId();
+        int target = action.defendingId();
+        if (source == -1 && target >= 0 && target < troops.length) {
+            int reinforced = troops[target] + action.troops();
+            double best = 0.0;
+            int[] neighbors = topology.getNeighbors();
+            for (int i = topology.neighborStart(target); i < topology.neighborEnd(target); i++) {
+                if (!ownsTerritory(neighbors[i])) {
+                    best = Math.max(best, battles.getWinProbability(reinforced - 1, troops[neighbors[i]]));
                 }
             }
-            
-            totalPotential += potential;
+            return best;
         }
-
-        return totalPotential / neighbors.size();
+        if (source < 0 || target < 0 || source >= troops.length || target >= troops.length) {
+            return 0.5;
+        }
+        if (board.isAttackPhase()) {
+            return battles.getWinProbability(troops[source] - 1, troops[target]);
+        }
+        // Fortification, the more of the movable troops reach the border the better
+        double moved = Math.min(1.0, (double) action.troops() / Math.max(1, troops[source] - 1));
+        boolean sourceBorder = hasEnemyNeighbor(source);
+        boolean targetBorder = hasEnemyNeighbor(target);
+        if (targetBorder && !sourceBorder) {
+            return 0.5 + 0.5 * moved;
+        }
+        if (sourceBorder && !targetBorder) {
+            return 0.25 * (1.0 - moved);
+        }
+        return 0.25;
     }
 
     /**
@@ -237,17 +394,19 @@ public class RiskMetricsCalculator {
      */
     public double getOverallAttackPotential() {
         if (overallAttackPotential == null) {
-            if (playerTerritories.isEmpty()) {
+            if (playerTerritoryCount == 0) {
                 overallAttackPotential = 0.0;
             } else {
                 double totalPotential = 0.0;
                 int validTerritories = 0;
 
-                for (int territoryId : playerTerritories) {
-                    double potential = getAttackPotential(territoryId);
-                    if (potential > 0) {
-                        totalPotential += potential;
-                        validTerritories++;
+                for (int w = 0; w < words; w++) {
+                    for (long bits = playerTerritories[w]; bits != 0; bits &= bits - 1) {
+                        double potential = getAttackPotential((w << 6) + Long.numberOfTrailingZeros(bits));
+                        if (potential > 0) {
+                            totalPotential += potential;
+                            validTerritories++;
+                        }
                     }
                 }
 
@@ -265,25 +424,24 @@ public class RiskMetricsCalculator {
      * @return A score between 0 and 1 indicating continent control potential
      */
     private double calculateContinentScore() {
-        if (continents.isEmpty()) {
+        if (topology.getNumberOfContinents() == 0) {
             return 0.0;
         }
 
-        initializeContinentCounts();
-
+        long[] continentMasks = topology.getContinentMasks();
         double totalScore = 0.0;
         int continentCount = 0;
 
-        for (Map.Entry<Integer, RiskContinent> entry : continents.entrySet()) {
-            int continentId = entry.getKey();
-            RiskContinent continent = entry.getValue();
-            
-            int totalTerritories = continentTerritoryCounts.getOrDefault(continentId, 0);
-            int playerTerritories = playerContinentTerritoryCounts.getOrDefault(continentId, 0);
+        for (int continent = 0; continent < topology.getNumberOfContinents(); continent++) {
+            int totalTerritories = topology.getContinentSize(continent);
+            int playerTerritories = 0;
+            for (int w = 0; w < words; w++) {
+                playerTerritories += Long.bitCount(continentMasks[continent * words + w] & this.playerTerritories[w]);
+            }
             
             if (totalTerritories > 0) {
                 double progress = (double) playerTerritories / totalTerritories;
-                double bonus = continent.getTroopBonus();
+                double bonus = topology.getContinentBonus(continent);
                 totalScore += progress * (bonus / 10.0);
                 continentCount++;
             }
@@ -292,21 +450,6 @@ public class RiskMetricsCalculator {
         return continentCount > 0 ? totalScore / continentCount : 0.0;
     }
 
-    private void initializeContinentCounts() {
-        if (continentTerritoryCounts == null) {
-            continentTerritoryCounts = new HashMap<>();
-            playerContinentTerritoryCounts = new HashMap<>();
-
-            for (RiskTerritory territory : territories.values()) {
-                int continentId = territory.getContinentId();
-                continentTerritoryCounts.merge(continentId, 1, Integer::sum);
-                if (territory.getOccupantPlayerId() == playerId) {
-                    playerContinentTerritoryCounts.merge(continentId, 1, Integer::sum);
-                }
-            }
-        }
-    }
-
     /**
      * Calculates an overall game state score that combines multiple metrics
      * to evaluate the player's position. The score emphasizes aggressive play
@@ -331,7 +474,7 @@ public class RiskMetricsCalculator {
         double weightSum = 0.0;
 
         if (CALCULATOR_CONFIG[0]) {
-            double territoryScore = (double) getTerritoryCount() / board.getTerritories().size();
+            double territoryScore = (double) getTerritoryCount() / numberOfTerritories;
             double territoryWeight = hasSignificantAdvantage ? 0.05 : (isBehindInTroops ? 0.3 : 0.2);
             score += territoryWeight * territoryScore;
             weightSum += territoryWeight;
@@ -403,11 +546,16 @@ public class RiskMetricsCalculator {
      * @return total border troops
      */
     public int getBorderStrength() {
-        return board.getTerritories().entrySet().stream()
-                .filter(entry -> entry.getValue().getOccupantPlayerId() == playerId)
-                .filter(entry -> !board.neighboringEnemyTerritories(entry.getKey()).isEmpty())
-                .mapToInt(entry -> entry.getValue().getTroops())
-                .sum();
+        int strength = 0;
+        for (int w = 0; w < words; w++) {
+            for (long bits = playerTerritories[w]; bits != 0; bits &= bits - 1) {
+                int territoryId = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (hasEnemyNeighbor(territoryId)) {
+                    strength += troops[territoryId];
+                }
+            }
+        }
+        return strength;
     }
 
     /**
@@ -415,11 +563,19 @@ public class RiskMetricsCalculator {
      * @return total threat level
      */
     public int getThreatLevel() {
-        return board.getTerritories().entrySet().stream()
-                .filter(entry -> entry.getValue().getOccupantPlayerId() == playerId)
-                .flatMap(entry -> board.neighboringEnemyTerritories(entry.getKey()).stream())
-                .mapToInt(territoryId -> board.getTerritoryTroops(territoryId))
-                .sum();
+        int[] neighbors = topology.getNeighbors();
+        int threat = 0;
+        for (int w = 0; w < words; w++) {
+            for (long bits = playerTerritories[w]; bits != 0; bits &= bits - 1) {
+                int territoryId = (w << 6) + Long.numberOfTrailingZeros(bits);
+                for (int i = topology.neighborStart(territoryId); i < topology.neighborEnd(territoryId); i++) {
+                    if (!ownsTerritory(neighbors[i])) {
+                        threat += troops[neighbors[i]];
+                    }
+                }
+            }
+        }
+        return threat;
     }
 
     /**
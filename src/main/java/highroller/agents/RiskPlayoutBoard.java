@@ -0,0 +1,511 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.ActionRecord;
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskTerritory;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * RiskPlayoutBoard is a mutable, array-backed copy of a Risk state used for fast playouts.
+ * Where the engine copies the whole immutable board for every action, moves on this board
+ * are a handful of array writes.
+ *
+ * Key Features:
+ * - Owner and troops per territory, phase, current player and card counts in a single int array
+ * - In-place reinforce, attack, occupy, fortify and end-phase moves
+ * - No allocation per move once the board is loaded, so one instance is reused per thread
+ * - Map topology shared with the evaluation through {@link RiskTopology}
+ * - Dice rounds drawn from the exact distribution of the {@link BattleOutcomeTable} with a single random number
+ *
+ * Simplifications compared to the engine:
+ * - An attack always rolls the most dice allowed and is resolved immediately
+ * - Reinforcements are max(3, territories / 3) plus continent bonuses,
+ *   three cards are traded in for a fixed bonus at the start of a turn
+ * - Missions are ignored, a player wins by occupying every territory
+ *
+ * Playouts are random anyway, so these rules shift the estimate only slightly.
+ * Initial territory selection and initial reinforcement are not supported; {@link #load}
+ * rejects those states so the caller can fall back to the engine.
+ */
+public final class RiskPlayoutBoard {
+
+    public static final int REINFORCE = 0;
+    public static final int ATTACK = 1;
+    public static final int OCCUPY = 2;
+    public static final int FORTIFY = 3;
+
+    private static final int MIN_REINFORCEMENTS = 3;
+    private static final int TERRITORIES_PER_REINFORCEMENT = 3;
+    private static final int CARDS_PER_TRADE_IN = 3;
+    private static final int TRADE_IN_BONUS = 6;
+
+    // Slots of the scalar state, followed by per-player and per-territory slots
+    private static final int PHASE = 0;
+    private static final int PLAYER = 1;
+    private static final int REINFORCEMENTS = 2;
+    private static final int OCCUPY_SOURCE = 3;
+    private static final int OCCUPY_TARGET = 4;
+    private static final int OCCUPY_MIN = 5;
+    private static final int CONQUERED = 6;
+    private static final int SCALARS = 7;
+
+    private static final VarHandle NON_DEPLOYED_REINFORCEMENTS = RiskZobrist.boardField("nonDeployedReinforcements", int[].class);
+
+    private final RiskTopology topology;
+    private final BattleOutcomeTable battles;
+    private final int numberOfPlayers;
+    private final int numberOfTerritories;
+    private final int cardsBase;
+    private final int territoryCountBase;
+    private final int ownerBase;
+    private final int troopsBase;
+    private final int[] neighbors;
+    private final int[] continentScratch;
+
+    private final int[] state;
+
+    /**
+     * Creates a playout board for the map of the given board.
+     * Only the topology and the dice configuration are taken over; the state is set by {@link #load(Risk, RiskBoard)}.
+     * @param board A board of the map to play on
+     */
+    public RiskPlayoutBoard(RiskBoard board) {
+        topology = RiskTopology.of(board);
+        battles = BattleOutcomeTable.of(board);
+        numberOfPlayers = board.getNumberOfPlayers();
+        numberOfTerritories = topology.getNumberOfTerritories();
+        neighbors = topology.getNeighbors();
+        continentScratch = new int[topology.getNumberOfContinents()];
+
+        cardsBase = SCALARS;
+        territoryCountBase = cardsBase + numberOfPlayers;
+        ownerBase = territoryCountBase + numberOfPlayers;
+        troopsBase = ownerBase + numberOfTerritories;
+        state = new int[troopsBase + numberOfTerritories];
+    }
+
+    /**
+     * Checks whether this board was built for the map and dice configuration of the given board.
+     * @param board The board to compare with
+     * @return true if the board can be loaded
+     */
+    public boolean fits(RiskBoard board) {
+        return board.getNumberOfPlayers() == numberOfPlayers && RiskTopology.of(board) == topology
+                && BattleOutcomeTable.of(board) == battles;
+    }
+
+    /**
+     * Copies the state of a Risk game into this board.
+     * Only reads the board and the last actions, so loading costs about as much as one engine action.
+     * @param game The game to copy
+     * @param board The board of the game, passed in since {@link Risk#getBoard()} copies it
+     * @return false if the state is not supported, e.g. a chance node or the initial placement
+     */
+    public boolean load(Risk game, RiskBoard board) {
+        int player = game.getCurrentPlayer();
+        if (player < 0 || game.isGameOver() || isInitialPlacement(game)) {
+            return false;
+        }
+        Arrays.fill(state, 0);
+        Arrays.fill(state, ownerBase, ownerBase + numberOfTerritories, -1);
+        for (Map.Entry<Integer, RiskTerritory> entry : board.getTerritories().entrySet()) {
+            int territory = entry.getKey();
+            int owner = entry.getValue().getOccupantPlayerId();
+            if (owner < 0) {
+                return false;
+            }
+            state[ownerBase + territory] = owner;
+            state[troopsBase + territory] = entry.getValue().getTroops();
+            state[territoryCountBase + owner]++;
+        }
+        for (int p = 0; p < numberOfPlayers; p++) {
+            state[cardsBase + p] = board.getPlayerCards(p).size();
+        }
+        state[PLAYER] = player;
+        state[PHASE] = RiskZobrist.phaseOf(board);
+
+        if (state[PHASE] == REINFORCE) {
+            // Trading in cards is left to the engine; troops it reserves for traded-in territories may go anywhere here
+            if (board.hasToTradeInCards(player)) {
+                return false;
+            }
+            int[] reinforcements = (int[]) NON_DEPLOYED_REINFORCEMENTS.get(board);
+            state[REINFORCEMENTS] = reinforcements[player];
+            return state[REINFORCEMENTS] > 0;
+        }
+        if (state[PHASE] == OCCUPY) {
+            // The occupy range is only visible through the possible actions
+            int min = Integer.MAX_VALUE;
+            for (RiskAction action : game.getPossibleActions()) {
+                if (!action.isCardIds() && !action.isBonus() && !action.isEndPhase()) {
+                    min = Math.min(min, action.troops());
+                }
+            }
+            RiskAction attack = RiskActionDelta.lastAttack(game);
+            if (min == Integer.MAX_VALUE || attack == null) {
+                return false;
+            }
+            state[OCCUPY_SOURCE] = attack.attackingId();
+            state[OCCUPY_TARGET] = attack.defendingId();
+            state[OCCUPY_MIN] = min;
+            state[CONQUERED] = 1;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the game is still in the initial selection or reinforcement,
+     * which happen before the first attack or end of a phase.
+     * Searches the history from its end, since every later turn ends a phase within a few actions.
+     */
+    private static boolean isInitialPlacement(Risk game) {
+        List<ActionRecord<RiskAction>> records = game.getActionRecords();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            RiskAction action = records.get(i).getAction();
+            if (action.isEndPhase() || RiskActionDelta.isTransfer(action)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Places reinforcements on a territory of the current player.
+     * The attack phase starts once all reinforcements are placed.
+     * @param territory The territory to reinforce
+     * @param troops Number of troops to place
+     */
+    public void reinforce(int territory, int troops) {
+        state[troopsBase + territory] += troops;
+        state[REINFORCEMENTS] -= troops;
+        if (state[REINFORCEMENTS] <= 0) {
+            state[PHASE] = ATTACK;
+        }
+    }
+
+    /**
+     * Rolls one round of dice between two territories and applies the casualties.
+     * If the defender loses its last troop, the territory changes hands and the occupy phase starts.
+     * @param source The attacking territory, holding at least two troops
+     * @param target The defending enemy territory
+     * @param random Source of the dice rolls
+     */
+    public void attack(int source, int target, Random random) {
+        int attackerDice = Math.min(battles.getMaxAttackerDice(), state[troopsBase + source] - 1);
+        int defenderDice = Math.min(battles.getMaxDefenderDice(), state[troopsBase + target]);
+        int attackerLosses = battles.sampleAttackerLosses(attackerDice, defenderDice, random);
+        int defenderLosses = Math.min(attackerDice, defenderDice) - attackerLosses;
+        state[troopsBase + source] -= attackerLosses;
+        state[troopsBase + target] -= defenderLosses;
+
+        if (state[troopsBase + target] == 0) {
+            int player = state[PLAYER];
+            int defender = state[ownerBase + target];
+            state[ownerBase + target] = player;
+            state[territoryCountBase + defender]--;
+            state[territoryCountBase + player]++;
+            state[OCCUPY_SOURCE] = source;
+            state[OCCUPY_TARGET] = target;
+            state[OCCUPY_MIN] = Math.min(attackerDice - attackerLosses, state[troopsBase + source] - 1);
+            state[CONQUERED] = 1;
+            state[PHASE] = OCCUPY;
+        }
+    }
+
+    /**
+     * Moves troops into the territory conquered by the last attack and returns to the attack phase.
+     * @param troops Number of troops to move, between {@link #getMinOccupy()} and {@link #getMaxOccupy()}
+     */
+    public void occupy(int troops) {
+        int source = state[OCCUPY_SOURCE];
+        int target = state[OCCUPY_TARGET];
+        state[troopsBase + source] -= troops;
+        state[troopsBase + target] += troops;
+        state[PHASE] = ATTACK;
+    }
+
+    /**
+     * Moves troops between two friendly territories and ends the turn.
+     * @param source The territory to move troops from
+     * @param target The neighboring friendly territory to move troops to
+     * @param troops Number of troops to move, leaving at least one behind
+     */
+    public void fortify(int source, int target, int troops) {
+        state[troopsBase + source] -= troops;
+        state[troopsBase + target] += troops;
+        endTurn();
+    }
+
+    /**
+     * Ends the current phase: reinforcement and occupation continue with the attack phase,
+     * attacks with the fortification and the fortification ends the turn.
+     */
+    public void endPhase() {
+        switch (state[PHASE]) {
+            case ATTACK:
+                state[PHASE] = FORTIFY;
+                break;
+            case FORTIFY:
+                endTurn();
+                break;
+            default:
+                state[PHASE] = ATTACK;
+        }
+    }
+
+    /**
+     * Passes the turn to the next player still alive, awarding a card for a conquest
+     * and the reinforcements of the next player.
+     */
+    private void endTurn() {
+        int player = state[PLAYER];
+        if (state[CONQUERED] != 0) {
+            state[cardsBase + player]++;
+            state[CONQUERED] = 0;
+        }
+        int next = player;
+        do {
+            next = (next + 1) % numberOfPlayers;
+        } while (state[territoryCountBase + next] == 0 && next != player);
+        state[PLAYER] = next;
+        state[PHASE] = REINFORCE;
+
+        int reinforcements = Math.max(MIN_REINFORCEMENTS, state[territoryCountBase + next] / TERRITORIES_PER_REINFORCEMENT);
+        Arrays.fill(continentScratch, 0);
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (topology.continentOf(t) >= 0 && state[ownerBase + t] == next) {
+                continentScratch[topology.continentOf(t)]++;
+            }
+        }
+        for (int c = 0; c < continentScratch.length; c++) {
+            if (continentScratch[c] == topology.getContinentSize(c)) {
+                reinforcements += topology.getContinentBonus(c);
+            }
+        }
+        if (state[cardsBase + next] >= CARDS_PER_TRADE_IN) {
+            state[cardsBase + next] -= CARDS_PER_TRADE_IN;
+            reinforcements += TRADE_IN_BONUS;
+        }
+        state[REINFORCEMENTS] = reinforcements;
+    }
+
+    /**
+     * Applies one random move of the current player, similar to picking uniformly among the
+     * engine's possible actions: reinforcements go to a random border territory at once,
+     * attacks and fortifications are chosen uniformly among the possible ones and ending the phase.
+     * @param random Source of randomness
+     */
+    public void playRandomMove(Random random) {
+        int player = state[PLAYER];
+        switch (state[PHASE]) {
+            case REINFORCE: {
+                int borders = countBorderTerritories(player);
+                int territory = borders > 0
+                        ? nthBorderTerritory(player, random.nextInt(borders))
+                        : nthTerritory(player, random.nextInt(state[territoryCountBase + player]));
+                reinforce(territory, state[REINFORCEMENTS]);
+                break;
+            }
+            case ATTACK: {
+                int choice = random.nextInt(countTransfers(player, true) + 1);
+                if (!transfer(player, true, choice, random)) {
+                    endPhase();
+                }
+                break;
+            }
+            case OCCUPY: {
+                int min = getMinOccupy();
+                occupy(min + random.nextInt(getMaxOccupy() - min + 1));
+                break;
+            }
+            default: {
+                int choice = random.nextInt(countTransfers(player, false) + 1);
+                if (!transfer(player, false, choice, random)) {
+                    endPhase();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays random moves until a player occupies every territory or the move limit is reached.
+     * @param maxMoves Maximum number of moves
+     * @param random Source of randomness
+     */
+    public void playout(int maxMoves, Random random) {
+        for (int move = 0; move < maxMoves && !isGameOver(); move++) {
+            playRandomMove(random);
+        }
+    }
+
+    private int countBorderTerritories(int player) {
+        int count = 0;
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (state[ownerBase + t] == player && hasEnemyNeighbor(t, player)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int nthBorderTerritory(int player, int n) {
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (state[ownerBase + t] == player && hasEnemyNeighbor(t, player) && n-- == 0) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private int nthTerritory(int player, int n) {
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (state[ownerBase + t] == player && n-- == 0) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasEnemyNeighbor(int territory, int player) {
+        for (int i = topology.neighborStart(territory); i < topology.neighborEnd(territory); i++) {
+            if (state[ownerBase + neighbors[i]] != player) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the attacks (towards enemies) or fortifications (towards friends) the player could make.
+     */
+    private int countTransfers(int player, boolean attack) {
+        int count = 0;
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (state[ownerBase + t] != player || state[troopsBase + t] < 2) {
+                continue;
+            }
+            for (int i = topology.neighborStart(t); i < topology.neighborEnd(t); i++) {
+                if ((state[ownerBase + neighbors[i]] != player) == attack) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Applies the n-th attack or fortification in the order of {@link #countTransfers(int, boolean)}.
+     * @return false if there is no such transfer
+     */
+    private boolean transfer(int player, boolean attack, int n, Random random) {
+        for (int t = 0; t < numberOfTerritories; t++) {
+            if (state[ownerBase + t] != player || state[troopsBase + t] < 2) {
+                continue;
+            }
+            for (int i = topology.neighborStart(t); i < topology.neighborEnd(t); i++) {
+                if ((state[ownerBase + neighbors[i]] != player) == attack && n-- == 0) {
+                    if (attack) {
+                        attack(t, neighbors[i], random);
+                    } else {
+                        fortify(t, neighbors[i], 1 + random.nextInt(state[troopsBase + t] - 1));
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a single player occupies every territory.
+     * @return true if the game is decided
+     */
+    public boolean isGameOver() {
+        for (int p = 0; p < numberOfPlayers; p++) {
+            int count = state[territoryCountBase + p];
+            if (count > 0) {
+                return count == getNumberOfOccupiedTerritories();
+            }
+        }
+        return true;
+    }
+
+    private int getNumberOfOccupiedTerritories() {
+        int total = 0;
+        for (int p = 0; p < numberOfPlayers; p++) {
+            total += state[territoryCountBase + p];
+        }
+        return total;
+    }
+
+    /**
+     * Evaluates the board for a player: 1 if the player occupies every territory, 0 if it is eliminated,
+     * otherwise the average of its share of territories and its share of troops.
+     * @param player The player to evaluate for
+     * @return Score between 0 and 1
+     */
+    public double getScore(int player) {
+        int territories = state[territoryCountBase + player];
+        int occupied = getNumberOfOccupiedTerritories();
+        if (territories == 0 || territories == occupied) {
+            return territories == 0 ? 0 : 1;
+        }
+        int troops = 0;
+        int totalTroops = 0;
+        for (int t = 0; t < numberOfTerritories; t++) {
+            totalTroops += state[troopsBase + t];
+            if (state[ownerBase + t] == player) {
+                troops += state[troopsBase + t];
+            }
+        }
+        return 0.5 * territories / occupied + 0.5 * troops / Math.max(totalTroops, 1);
+    }
+
+    public int getCurrentPlayer() {
+        return state[PLAYER];
+    }
+
+    public int getPhase() {
+        return state[PHASE];
+    }
+
+    public int getReinforcementsLeft() {
+        return state[REINFORCEMENTS];
+    }
+
+    public int getMinOccupy() {
+        return Math.max(1, Math.min(state[OCCUPY_MIN], getMaxOccupy()));
+    }
+
+    public int getMaxOccupy() {
+        return state[troopsBase + state[OCCUPY_SOURCE]] - 1;
+    }
+
+    public int getNumberOfTerritories() {
+        return numberOfTerritories;
+    }
+
+    public int getTerritoryOccupantId(int territory) {
+        return state[ownerBase + territory];
+    }
+
+    public int getTerritoryTroops(int territory) {
+        return state[troopsBase + territory];
+    }
+
+    public int getNumberOfCards(int player) {
+        return state[cardsBase + player];
+    }
+
+    public int getNrOfTerritoriesOccupiedByPlayer(int player) {
+        return state[territoryCountBase + player];
+    }
+
+}
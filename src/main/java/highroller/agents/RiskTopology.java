@@ -0,0 +1,266 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskTerritory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * RiskTopology is the immutable, primitive-array form of a Risk map.
+ * It is built once per map and shared by every calculator and playout board, so looking up
+ * neighbors or continents no longer goes through the boxed maps and sets of RiskBoard.
+ *
+ * Key Features:
+ * - Adjacency in compressed sparse row (CSR) form, neighbors sorted by territory id
+ * - Territory to continent index, continent sizes and bonuses as int arrays
+ * - Continents addressed by a dense index in ascending order of their ids
+ * - Bitmasks (long words) of every territory's neighbors and every continent's territories
+ * - Small cache of the most recently built topologies, so agents on different maps can share a JVM
+ *
+ * Cached topologies are looked up by a signature over the territories, their continents and
+ * neighbors, and the continent bonuses, so maps that only differ in their adjacency get
+ * topologies of their own. Board copies share their continent map, so boards of a game that
+ * was already looked up skip the signature by an identity check.
+ */
+public final class RiskTopology {
+
+    private static final int MAX_CACHED = 8;
+    // Most recently built first, replaced as a whole on every change
+    private static volatile RiskTopology[] cache = new RiskTopology[0];
+
+    private final long signature;
+    // Continent map of the boards last looked up, updated when boards of a new game arrive
+    private volatile Map<Integer, ?> continents;
+    private final int numberOfTerritories;
+    private final boolean[] territory;
+    private final int[] neighborStart;
+    private final int[] neighbors;
+    private final int[] continentIds;
+    private final int[] continentOf;
+    private final int[] continentBonus;
+    private final int[] continentSize;
+    private final int words;
+    private final long[] neighborMasks;
+    private final long[] continentMasks;
+
+    private RiskTopology(RiskBoard board, long signature) {
+        this.signature = signature;
+        this.continents = board.getContinents();
+        Map<Integer, RiskTerritory> territories = board.getTerritories();
+        int maxId = -1;
+        for (int id : territories.keySet()) {
+            maxId = Math.max(maxId, id);
+        }
+        numberOfTerritories = maxId + 1;
+
+        continentIds = board.getContinentIds().stream().mapToInt(Integer::intValue).sorted().toArray();
+        continentBonus = new int[continentIds.length];
+        continentSize = new int[continentIds.length];
+        for (int c = 0; c < continentIds.length; c++) {
+            continentBonus[c] = board.getContinentBonus(continentIds[c]);
+        }
+
+        territory = new boolean[numberOfTerritories];
+        neighborStart = new int[numberOfTerritories + 1];
+        continentOf = new int[numberOfTerritories];
+        Arrays.fill(continentOf, -1);
+        int[][] adjacency = new int[numberOfTerritories][];
+        int edges = 0;
+        for (int t = 0; t < numberOfTerritories; t++) {
+            territory[t] = territories.containsKey(t);
+            if (!territory[t]) {
+                adjacency[t] = new int[0];
+                continue;
+            }
+            adjacency[t] = board.neighboringTerritories(t).stream().mapToInt(Integer::intValue).sorted().toArray();
+            edges += adjacency[t].length;
+            int continent = Arrays.binarySearch(continentIds, territories.get(t).getContinentId());
+            if (continent >= 0) {
+                continentOf[t] = continent;
+                continentSize[continent]++;
+            }
+        }
+        neighbors = new int[edges];
+        int next = 0;
+        for (int t = 0; t < numberOfTerritories; t++) {
+            neighborStart[t] = next;
+            System.arraycopy(adjacency[t], 0, neighbors, next, adjacency[t].length);
+            next += adjacency[t].length;
+        }
+        neighborStart[numberOfTerritories] = next;
+
+        words = wordsFor(numberOfTerritories);
+        neighborMasks = new long[numberOfTerritories * words];
+        continentMasks = new long[continentIds.length * words];
+        for (int t = 0; t < numberOfTerritories; t++) {
+            for (int i = neighborStart[t]; i < neighborStart[t + 1]; i++) {
+                neighborMasks[t * words + (neighbors[i] >>> 6)] |= 1L << neighbors[i];
+            }
+            if (continentOf[t] >= 0) {
+                continentMasks[continentOf[t] * words + (t >>> 6)] |= 1L << t;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of long words needed for a bitset over the given number of territories.
+     * @param numberOfTerritories Size of the territory index space
+     * @return Number of 64-bit words
+     */
+    public static int wordsFor(int numberOfTerritories) {
+        return (numberOfTerritories + 63) >>> 6;
+    }
+
+    /**
+     * Gets the topology of the map of a board, building it only if the map is not cached.
+     * @param board A board of the map
+     * @return The shared topology
+     */
+    public static RiskTopology of(RiskBoard board) {
+        Map<Integer, ?> boardContinents = board.getContinents();
+        RiskTopology[] topologies = cache;
+        for (RiskTopology topology : topologies) {
+            if (topology.continents == boardContinents) {
+                return topology;
+            }
+        }
+        long signature = signatureOf(board);
+        for (RiskTopology topology : topologies) {
+            if (topology.signature == signature) {
+                topology.continents = boardContinents;
+                return topology;
+            }
+        }
+        RiskTopology topology = new RiskTopology(board, signature);
+        synchronized (RiskTopology.class) {
+            RiskTopology[] current = cache;
+            int kept = Math.min(current.length, MAX_CACHED - 1);
+            RiskTopology[] next = new RiskTopology[kept + 1];
+            next[0] = topology;
+            System.arraycopy(current, 0, next, 1, kept);
+            cache = next;
+        }
+        return topology;
+    }
+
+    /**
+     * Computes the signature of the map of a board. Neighbors and continents are combined
+     * by addition, so the iteration order of the engine's sets does not matter.
+     * @param board A board of the map
+     * @return The signature
+     */
+    private static long signatureOf(RiskBoard board) {
+        long signature = mix(board.getContinentIds().size());
+        for (int continentId : board.getContinentIds()) {
+            signature += mix(mix(continentId) ^ board.getContinentBonus(continentId));
+        }
+        for (Map.Entry<Integer, RiskTerritory> entry : board.getTerritories().entrySet()) {
+            int territoryId = entry.getKey();
+            long neighbors = 0;
+            for (int neighbor : board.neighboringTerritories(territoryId)) {
+                neighbors += mix(neighbor);
+            }
+            signature += mix(mix(mix(territoryId) ^ entry.getValue().getContinentId()) ^ neighbors);
+        }
+        return signature;
+    }
+
+    private static long mix(long z) {
+        // SplitMix64 step spreads small ids over all 64 bits
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Gets the size of the territory index space; ids without a territory have no neighbors.
+     * @return One more than the highest territory id
+     */
+    public int getNumberOfTerritories() {
+        return numberOfTerritories;
+    }
+
+    public boolean isTerritory(int territoryId) {
+        return territory[territoryId];
+    }
+
+    /**
+     * Gets the index of the first neighbor of a territory in {@link #getNeighbors()}.
+     * The neighbors of t are at indices neighborStart(t) until neighborStart(t + 1), exclusive.
+     * @param territoryId The territory
+     * @return Start index of its neighbors
+     */
+    public int neighborStart(int territoryId) {
+        return neighborStart[territoryId];
+    }
+
+    /**
+     * Gets the index after the last neighbor of a territory in {@link #getNeighbors()}.
+     * @param territoryId The territory
+     * @return End index of its neighbors, exclusive
+     */
+    public int neighborEnd(int territoryId) {
+        return neighborStart[territoryId + 1];
+    }
+
+    /**
+     * Gets the neighbor array shared by all territories. Must not be modified.
+     * @return The concatenated, per territory sorted neighbor lists
+     */
+    public int[] getNeighbors() {
+        return neighbors;
+    }
+
+    /**
+     * Gets the number of long words of a territory bitset; territory t is bit (t % 64) of word (t / 64).
+     * @return Number of 64-bit words per bitset
+     */
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Gets the neighbor bitsets of all territories, the one of territory t starts at t * getWords().
+     * Must not be modified.
+     * @return The concatenated neighbor bitsets
+     */
+    public long[] getNeighborMasks() {
+        return neighborMasks;
+    }
+
+    /**
+     * Gets the territory bitsets of all continents, the one of continent c starts at c * getWords().
+     * Must not be modified.
+     * @return The concatenated continent bitsets
+     */
+    public long[] getContinentMasks() {
+        return continentMasks;
+    }
+
+    public int getNumberOfContinents() {
+        return continentIds.length;
+    }
+
+    /**
+     * Gets the dense continent index of a territory.
+     * @param territoryId The territory
+     * @return The continent index, or -1 if the territory belongs to no known continent
+     */
+    public int continentOf(int territoryId) {
+        return continentOf[territoryId];
+    }
+
+    public int getContinentId(int continent) {
+        return continentIds[continent];
+    }
+
+    public int getContinentBonus(int continent) {
+        return continentBonus[continent];
+    }
+
+    public int getContinentSize(int continent) {
+        return continentSize[continent];
+    }
+}
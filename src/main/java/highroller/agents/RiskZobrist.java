@@ -0,0 +1,245 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskCard;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskTerritory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * RiskZobrist computes Zobrist-style 64-bit hashes of Risk game states.
+ * Equivalent states reached through different action orders hash to the same value,
+ * which lets statistics be shared between them.
+ *
+ * Key Features:
+ * - One pseudo-random key per (territory, owner) and (territory, troops) pair
+ * - Keys for the phase, the current player and every player's cards per card type
+ * - Keys for the pending attack, the reinforcements left to place and the number of trade-ins
+ * - Keys for the rest of the turn state: whether a territory was conquered, the troops involved
+ *   in attacks, the territories reinforced and the territory of the last trade-in
+ * - Keys are derived by mixing instead of stored in tables, so troop counts are unbounded
+ *
+ * The hash of a state is the XOR of the keys of all its features, so a single
+ * feature can be replaced by XOR-ing out its old key and XOR-ing in the new one.
+ * {@link #update} uses this to derive a child's hash from its parent's hash and the
+ * territories touched by the applied action.
+ *
+ * The turn state has no public accessors on {@link RiskBoard}; it is read through private field
+ * handles looked up once. Without it, all attacks of a state would lead to children with the
+ * same hash, and states differing in what the rest of the turn allows would share statistics.
+ * If the engine does not have one of these fields, loading this class fails instead of hashing
+ * different states alike.
+ */
+public final class RiskZobrist {
+
+    private static final int OWNER = 1;
+    private static final int TROOPS = 2;
+    private static final int PHASE = 3;
+    private static final int PLAYER = 4;
+    private static final int CARDS = 5;
+    private static final int ATTACK = 6;
+    private static final int ATTACK_TROOPS = 7;
+    private static final int REINFORCEMENTS = 8;
+    private static final int TRADE_INS = 9;
+    private static final int OCCUPIED = 10;
+    private static final int INVOLVED_TROOPS = 11;
+    private static final int REINFORCED = 12;
+    private static final int TRADED_IN = 13;
+    // Card types range from RiskCard.WILDCARD to RiskCard.CAVALRY
+    private static final int CARD_TYPES = RiskCard.CAVALRY - RiskCard.WILDCARD + 1;
+
+    private static final VarHandle ATTACKING_ID = boardField("attackingId", int.class);
+    private static final VarHandle DEFENDING_ID = boardField("defendingId", int.class);
+    private static final VarHandle ATTACKING_TROOPS = boardField("troops", int.class);
+    private static final VarHandle NON_DEPLOYED_REINFORCEMENTS = boardField("nonDeployedReinforcements", int[].class);
+    private static final VarHandle TRADE_IN_COUNT = boardField("tradeIns", int.class);
+    private static final VarHandle TRADED_IN_ID = boardField("tradedInId", int.class);
+    private static final VarHandle HAS_OCCUPIED_COUNTRY = boardField("hasOccupiedCountry", boolean.class);
+    private static final VarHandle INVOLVED_TROOPS_IN_ATTACKS = boardField("involvedTroopsInAttacks", Map.class);
+    private static final VarHandle REINFORCED_TERRITORIES = boardField("reinforcedTerritories", Set.class);
+
+    private RiskZobrist() {
+    }
+
+    /**
+     * Computes the hash of a Risk game state from scratch.
+     * @param game The game state to hash
+     * @return 64-bit hash of the state
+     */
+    public static long hash(Risk game) {
+        return hash(game.getBoard(), game.getCurrentPlayer());
+    }
+
+    /**
+     * Computes the hash of a Risk board from scratch.
+     * @param board The board to hash
+     * @param currentPlayer The player to move, negative for chance nodes
+     * @return 64-bit hash of the state
+     */
+    public static long hash(RiskBoard board, int currentPlayer) {
+        long hash = 0L;
+        for (Map.Entry<Integer, RiskTerritory> entry : board.getTerritories().entrySet()) {
+            RiskTerritory territory = entry.getValue();
+            hash ^= territoryKey(entry.getKey(), territory.getOccupantPlayerId(), territory.getTroops());
+        }
+        return hash ^ turnHash(board, currentPlayer);
+    }
+
+    /**
+     * Derives the hash of a child state from the hash of its parent.
+     * Only the given territories are rehashed; the rest of the turn state is always rehashed
+     * since it involves only a handful of keys.
+     * @param parentHash Hash of the parent state
+     * @param parentBoard Board of the parent state
+     * @param parentPlayer Player to move in the parent state
+     * @param childBoard Board of the child state
+     * @param childPlayer Player to move in the child state
+     * @param affectedTerritories Territories changed by the action, see {@link RiskActionDelta}, or null if unknown
+     * @return Hash of the child state
+     */
+    public static long update(long parentHash, RiskBoard parentBoard, int parentPlayer,
+                              RiskBoard childBoard, int childPlayer, int[] affectedTerritories) {
+        if (affectedTerritories == null) {
+            return hash(childBoard, childPlayer);
+        }
+        long hash = parentHash ^ turnHash(parentBoard, parentPlayer) ^ turnHash(childBoard, childPlayer);
+        for (int territoryId : affectedTerritories) {
+            hash ^= territoryKey(territoryId, parentBoard.getTerritoryOccupantId(territoryId),
+                    parentBoard.getTerritoryTroops(territoryId));
+            hash ^= territoryKey(territoryId, childBoard.getTerritoryOccupantId(territoryId),
+                    childBoard.getTerritoryTroops(territoryId));
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of everything but the territories: phase, current player, cards per type, the pending
+     * attack, the reinforcements left, the number of trade-ins and the rest of the turn state.
+     * @param board The board
+     * @param currentPlayer The player to move
+     * @return Combined key of the turn state
+     */
+    private static long turnHash(RiskBoard board, int currentPlayer) {
+        long hash = phaseKey(phaseOf(board)) ^ playerKey(currentPlayer);
+        int[] reinforcements = (int[]) NON_DEPLOYED_REINFORCEMENTS.get(board);
+        int[] cardTypes = new int[CARD_TYPES];
+        for (int player = 0; player < board.getNumberOfPlayers(); player++) {
+            for (RiskCard card : board.getPlayerCards(player)) {
+                cardTypes[card.getCardType() - RiskCard.WILDCARD]++;
+            }
+            for (int type = 0; type < CARD_TYPES; type++) {
+                hash ^= cardsKey(player, type + RiskCard.WILDCARD, cardTypes[type]);
+                cardTypes[type] = 0;
+            }
+            if (player < reinforcements.length) {
+                hash ^= key(REINFORCEMENTS, player, reinforcements[player]);
+            }
+        }
+        hash ^= key(ATTACK, readInt(ATTACKING_ID, board), readInt(DEFENDING_ID, board));
+        hash ^= key(ATTACK_TROOPS, readInt(ATTACKING_TROOPS, board), 0);
+        hash ^= key(TRADE_INS, readInt(TRADE_IN_COUNT, board), 0);
+        hash ^= key(TRADED_IN, readInt(TRADED_IN_ID, board), 0);
+        hash ^= key(OCCUPIED, (boolean) HAS_OCCUPIED_COUNTRY.get(board) ? 1 : 0, 0);
+        @SuppressWarnings("unchecked")
+        Map<Integer, Integer> involvedTroops = (Map<Integer, Integer>) INVOLVED_TROOPS_IN_ATTACKS.get(board);
+        for (Map.Entry<Integer, Integer> entry : involvedTroops.entrySet()) {
+            hash ^= key(INVOLVED_TROOPS, entry.getKey(), entry.getValue());
+        }
+        @SuppressWarnings("unchecked")
+        Set<Integer> reinforced = (Set<Integer>) REINFORCED_TERRITORIES.get(board);
+        for (int territoryId : reinforced) {
+            hash ^= key(REINFORCED, territoryId, 0);
+        }
+        return hash;
+    }
+
+    /**
+     * Looks up a handle to a private field of the board.
+     * @param name Name of the field
+     * @param type Type of the field
+     * @return The handle
+     * @throws IllegalStateException if the field does not exist or cannot be accessed
+     */
+    static VarHandle boardField(String name, Class<?> type) {
+        try {
+            return MethodHandles.privateLookupIn(RiskBoard.class, MethodHandles.lookup())
+                    .findVarHandle(RiskBoard.class, name, type);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            throw new IllegalStateException("Cannot hash Risk states without RiskBoard." + name, e);
+        }
+    }
+
+    private static int readInt(VarHandle field, RiskBoard board) {
+        return (int) field.get(board);
+    }
+
+    /**
+     * Key of a territory with the given owner and troop count.
+     * @param territoryId The territory
+     * @param owner The occupying player
+     * @param troops The troops on the territory
+     * @return Combined key of the territory's owner and troops
+     */
+    public static long territoryKey(int territoryId, int owner, int troops) {
+        return key(OWNER, territoryId, owner) ^ key(TROOPS, territoryId, troops);
+    }
+
+    /**
+     * Key of a game phase.
+     * @param phase Phase index as returned by {@link #phaseOf(RiskBoard)}
+     * @return Key of the phase
+     */
+    public static long phaseKey(int phase) {
+        return key(PHASE, phase, 0);
+    }
+
+    /**
+     * Key of the player to move.
+     * @param player The current player, negative for chance nodes
+     * @return Key of the player
+     */
+    public static long playerKey(int player) {
+        return key(PLAYER, player, 0);
+    }
+
+    /**
+     * Key of the number of cards of one type a player holds.
+     * @param player The player
+     * @param type The card type, see {@link RiskCard#getCardType()}
+     * @param cards Number of cards of the type in the player's hand
+     * @return Key of the card count
+     */
+    public static long cardsKey(int player, int type, int cards) {
+        return key(CARDS, player * CARD_TYPES + type - RiskCard.WILDCARD, cards);
+    }
+
+    /**
+     * Maps the phase of a board to an index.
+     * @param board The board
+     * @return 0 for reinforcement, 1 for attack, 2 for occupy, 3 for fortify
+     */
+    public static int phaseOf(RiskBoard board) {
+        if (board.isReinforcementPhase()) {
+            return 0;
+        }
+        if (board.isAttackPhase()) {
+            return 1;
+        }
+        if (board.isOccupyPhase()) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private static long key(int feature, int a, int b) {
+        long z = feature * 0x9E3779B97F4A7C15L + a * 0xC2B2AE3D27D4EB4FL + b * 0x165667B19E3779F9L;
+        // SplitMix64 finalizer spreads the structured input over all 64 bits
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,309 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.Game;
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimeManager decides how much of the computation time a decision gets and when its search may stop.
+ * Without it, every decision uses the full computation time, whether it is a trivial occupation
+ * or a critical attack.
+ *
+ * Key Features:
+ * - Forced decisions with a single possible action are not searched at all
+ * - The share of the computation time grows with the number of possible actions
+ * - Per-phase weights for Risk: attacks get the most time, occupations the least
+ * - The single-troop placements of the initial setup count as a low-stakes stage
+ * - Configurable early stop once the choice of the final move cannot change, see {@link StopRule}
+ * - Optional banking of the time saved by early stops for later attack decisions
+ *
+ * The share of a decision is its phase weight times log(actions) / log({@link #FULL_BRANCHING}),
+ * capped at one and at least {@link #MIN_SHARE}. The final move is the most visited root child,
+ * so every stop rule asks whether that child could still be replaced. Root statistics reused from
+ * earlier searches or pondering do not count towards the play rate, and every stop rule must also
+ * hold for the statistics of the current search alone.
+ * With banking, the time an early stop saves is kept and added to the next attack decisions
+ * whose share is below the full computation time. The bank holds at most
+ * {@link #MAX_BANKED_DECISIONS} computation times.
+ */
+public class TimeManager {
+
+    /**
+     * Determines when a search counts as decided before its time is up.
+     */
+    public enum StopRule {
+        /** Always search for the allotted time. */
+        NONE,
+        /** Stop once the lead in plays of the most visited root child, overall and within the current search, exceeds the plays the remaining time allows. */
+        VISIT_LEAD,
+        /** Stop once the win rate confidence interval of the most visited root child lies above those of all others, overall and within the current search. */
+        CONFIDENCE_INTERVAL
+    }
+
+    public static final int FULL_BRANCHING = 16;
+    public static final double MIN_SHARE = 0.1;
+    private static final double ATTACK_WEIGHT = 1.0;
+    private static final double REINFORCEMENT_WEIGHT = 0.6;
+    private static final double FORTIFY_WEIGHT = 0.5;
+    private static final double OCCUPY_WEIGHT = 0.3;
+    private static final double SETUP_WEIGHT = 0.25;
+    public static final int MAX_BANKED_DECISIONS = 3;
+    private static final double DEFAULT_CONFIDENCE = 2.58; // z of a two-sided 99% interval
+
+    private StopRule stopRule = StopRule.VISIT_LEAD;
+    private double confidence = DEFAULT_CONFIDENCE;
+    private boolean banking = false;
+    private long banked;
+
+    /**
+     * Sets the rule deciding when a search may stop early.
+     * @param stopRule The rule, {@link StopRule#NONE} to always use the allotted time
+     */
+    public void setStopRule(StopRule stopRule) {
+        this.stopRule = Objects.requireNonNull(stopRule);
+    }
+
+    public StopRule getStopRule() {
+        return stopRule;
+    }
+
+    /**
+     * Sets the width of the confidence intervals of {@link StopRule#CONFIDENCE_INTERVAL}.
+     * @param confidence Number of standard deviations, e.g. 2.58 for 99%
+     */
+    public void setConfidence(double confidence) {
+        if (confidence <= 0) {
+            throw new IllegalArgumentException("Confidence must be positive");
+        }
+        this.confidence = confidence;
+    }
+
+    /**
+     * Enables keeping the time saved by early stops for later, harder decisions.
+     * @param banking true to bank saved time
+     */
+    public synchronized void setBanking(boolean banking) {
+        this.banking = banking;
+        this.banked = 0;
+    }
+
+    /**
+     * Gets the time saved so far and not yet spent.
+     * @return Banked nanoseconds
+     */
+    public synchronized long getBanked() {
+        return banked;
+    }
+
+    /**
+     * Determines the computation time of a decision.
+     * @param game The state to decide in
+     * @param computationTime Maximum time the decision may search, with any safety buffer already taken off
+     * @param timeUnit Unit of the computation time
+     * @return The time to spend in nanoseconds, zero if the decision is forced
+     */
+    public synchronized long allot(Game<?, ?> game, long computationTime, TimeUnit timeUnit) {
+        int actions = game.getPossibleActions().size();
+        if (actions <= 1) {
+            return 0;
+        }
+        long full = timeUnit.toNanos(computationTime);
+        double weight = weight(game);
+        double branching = Math.min(1.0, Math.log(actions) / Math.log(FULL_BRANCHING));
+        double share = Math.max(MIN_SHARE, Math.min(1.0, weight * branching));
+        long allotted = (long) (full * share);
+        if (banking && weight >= ATTACK_WEIGHT) {
+            banked = Math.min(banked, MAX_BANKED_DECISIONS * full);
+            long drawn = Math.min(banked, full - allotted);
+            banked -= drawn;
+            allotted += drawn;
+        }
+        return allotted;
+    }
+
+    /**
+     * Reports how much of its allotted time a decision actually used. With banking, the rest is saved.
+     * @param allotted Nanoseconds allotted by {@link #allot}
+     * @param used Nanoseconds spent on the decision
+     */
+    public synchronized void record(long allotted, long used) {
+        if (banking && used < allotted) {
+            banked += allotted - used;
+        }
+    }
+
+    /**
+     * Gets how much the phase and stage of a game are worth searching, relative to a Risk attack.
+     * @param game The state to decide in
+     * @return The weight, one for games other than Risk
+     */
+    private double weight(Game<?, ?> game) {
+        if (!(game instanceof Risk)) {
+            return 1.0;
+        }
+        Risk risk = (Risk) game;
+        RiskBoard board = risk.getBoard();
+        if (board.isAttackPhase()) {
+            return ATTACK_WEIGHT;
+        }
+        if (board.isOccupyPhase()) {
+            return OCCUPY_WEIGHT;
+        }
+        if (board.isFortifyPhase()) {
+            return FORTIFY_WEIGHT;
+        }
+        return isSetup(risk.getPossibleActions()) ? SETUP_WEIGHT : REINFORCEMENT_WEIGHT;
+    }
+
+    /**
+     * Checks whether a state belongs to the initial setup, where territories are taken and
+     * reinforced one troop at a time.
+     * @param actions The possible actions of the state
+     * @return true if no action places more than a single troop
+     */
+    private static boolean isSetup(Set<RiskAction> actions) {
+        for (RiskAction action : actions) {
+            if (action.isCardIds() || action.isBonus() || action.isEndPhase() || action.troops() > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the search can stop because, according to the stop rule, the most visited
+     * root child will remain the final move. Until every edge of the root has a child, e.g. while
+     * progressive widening still holds some back, a move not searched yet could replace it, so the
+     * search is never decided.
+     * @param rootChildren The root children with their statistics
+     * @param rootEdges Number of children the root has once fully expanded
+     * @param searchStart Statistics of the root children by their actions when the current search started
+     * @param elapsed Nanoseconds searched so far
+     * @param remaining Nanoseconds left to search
+     * @return true if the final move is decided
+     */
+    public boolean isDecided(Collection<? extends HrGameNode<?>> rootChildren, int rootEdges,
+                             Map<? extends List<?>, ? extends HrGameNode<?>> searchStart, long elapsed, long remaining) {
+        if (rootChildren.size() < Math.max(2, rootEdges)) {
+            return false;
+        }
+        HrGameNode<?> best = null;
+        int searchPlays = 0;
+        for (HrGameNode<?> child : rootChildren) {
+            searchPlays += searchPlays(child, searchStart);
+            if (best == null || child.getPlays() > best.getPlays()
+                    || (child.getPlays() == best.getPlays() && child.getWins() > best.getWins())) {
+                best = child;
+            }
+        }
+        if (best == null || searchPlays <= 0 || elapsed <= 0) {
+            return false;
+        }
+        switch (stopRule) {
+            case VISIT_LEAD:
+                return isLeadDecided(rootChildren, searchStart, best, (double) searchPlays / elapsed * Math.max(0, remaining));
+            case CONFIDENCE_INTERVAL:
+                return isIntervalDecided(rootChildren, searchStart, best);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether no other child can catch up with the plays of the best one. The lead must
+     * exceed the remaining plays both overall, so the final move cannot change, and within the
+     * current search, so reused plays alone never end it.
+     * @param rootChildren The root children
+     * @param searchStart Statistics of the root children by their actions when the current search started
+     * @param best The most visited root child
+     * @param remainingPlays Plays the remaining time allows at the rate observed so far
+     * @return true if the lead exceeds the remaining plays
+     */
+    private static boolean isLeadDecided(Collection<? extends HrGameNode<?>> rootChildren, Map<? extends List<?>, ? extends HrGameNode<?>> searchStart,
+                                         HrGameNode<?> best, double remainingPlays) {
+        int bestSearchPlays = searchPlays(best, searchStart);
+        for (HrGameNode<?> child : rootChildren) {
+            if (child != best && (best.getPlays() - child.getPlays() <= remainingPlays
+                    || bestSearchPlays - searchPlays(child, searchStart) <= remainingPlays)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the plays a root child received in the current search.
+     * @param child The root child
+     * @param searchStart Statistics of the root children by their actions when the current search started
+     * @return Plays since the search started
+     */
+    private static int searchPlays(HrGameNode<?> child, Map<? extends List<?>, ? extends HrGameNode<?>> searchStart) {
+        HrGameNode<?> start = searchStart.get(child.getActions());
+        return start != null ? child.getPlays() - start.getPlays() : child.getPlays();
+    }
+
+    /**
+     * Gets the wins a root child received in the current search.
+     * @param child The root child
+     * @param searchStart Statistics of the root children by their actions when the current search started
+     * @return Wins since the search started
+     */
+    private static int searchWins(HrGameNode<?> child, Map<? extends List<?>, ? extends HrGameNode<?>> searchStart) {
+        HrGameNode<?> start = searchStart.get(child.getActions());
+        return start != null ? child.getWins() - start.getWins() : child.getWins();
+    }
+
+    /**
+     * Checks whether the Wilson score interval of the best child's win rate lies above the
+     * intervals of all other children, both overall and within the current search, so reused
+     * statistics alone never end it. Children not visited in the current search keep it going.
+     * @param rootChildren The root children
+     * @param searchStart Statistics of the root children by their actions when the current search started
+     * @param best The most visited root child
+     * @return true if the intervals are separated
+     */
+    private boolean isIntervalDecided(Collection<? extends HrGameNode<?>> rootChildren,
+                                      Map<? extends List<?>, ? extends HrGameNode<?>> searchStart, HrGameNode<?> best) {
+        int bestSearchPlays = searchPlays(best, searchStart);
+        if (bestSearchPlays <= 0) {
+            return false;
+        }
+        double lower = wilsonBound(best.getWins(), best.getPlays(), -confidence);
+        double searchLower = wilsonBound(searchWins(best, searchStart), bestSearchPlays, -confidence);
+        for (HrGameNode<?> child : rootChildren) {
+            if (child == best) {
+                continue;
+            }
+            int childSearchPlays = searchPlays(child, searchStart);
+            if (childSearchPlays <= 0
+                    || wilsonBound(child.getWins(), child.getPlays(), confidence) >= lower
+                    || wilsonBound(searchWins(child, searchStart), childSearchPlays, confidence) >= searchLower) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates a bound of the Wilson score interval of a win rate.
+     * @param wins Number of wins
+     * @param plays Number of plays, positive
+     * @param z Standard deviations, negative for the lower bound
+     * @return The bound
+     */
+    private static double wilsonBound(int wins, int plays, double z) {
+        double p = (double) wins / plays;
+        double z2 = z * z;
+        double center = p + z2 / (2.0 * plays);
+        double spread = z * Math.sqrt(p * (1 - p) / plays + z2 / (4.0 * plays * plays));
+        return (center + spread) / (1 + z2 / plays);
+    }
+}
@@ -0,0 +1,151 @@
+package highroller.agents;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TranspositionTable pools the MCTS statistics of equivalent game states.
+ * States are identified by their 64-bit hash (see {@link RiskZobrist}), so tree nodes
+ * reached through different action orders share one set of plays and wins.
+ *
+ * Key Features:
+ * - Fixed capacity, allocated once, so memory stays predictable over a long game
+ * - Primitive parallel arrays instead of boxed map entries
+ * - Two-way buckets with a least-played replacement policy
+ * - Lock-free lookups and striped locks for updates
+ *
+ * When both slots of a bucket are taken by other states, the one with fewer plays is
+ * replaced, so well-explored states survive while rarely visited ones are recycled.
+ * The plays and wins of a slot are packed into one long, so a lookup reads them together.
+ * Updates lock one of {@link #STRIPES} stripes of buckets, and lookups take no lock at all,
+ * so threads of a tree-parallel search only wait for each other on the same stripe.
+ */
+public class TranspositionTable {
+
+    public static final int STRIPES = 64;
+    private static final long EMPTY = 0L;
+
+    private final AtomicLongArray keys;
+    // Plays in the upper and wins in the lower 32 bits
+    private final AtomicLongArray stats;
+    private final Object[] locks = new Object[STRIPES];
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates a transposition table.
+     * @param capacity Maximum number of states, rounded up to the next power of two
+     */
+    public TranspositionTable(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        this.keys = new AtomicLongArray(slots);
+        this.stats = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Adds the result of simulations to the statistics of a state.
+     * @param hash Hash of the state
+     * @param wins Number of simulations that resulted in a win
+     * @param plays Number of simulations performed
+     */
+    public void record(long hash, int wins, int plays) {
+        long key = key(hash);
+        int first = bucket(key);
+        synchronized (locks[(first >>> 1) & (STRIPES - 1)]) {
+            int slot = find(key, first);
+            if (slot < 0) {
+                slot = replace(key, first);
+            }
+            stats.addAndGet(slot, ((long) plays << 32) + wins);
+        }
+    }
+
+    /**
+     * Gets the pooled win rate of a state.
+     * @param hash Hash of the state
+     * @param virtualLoss Pending virtual losses counted as additional plays
+     * @return The win rate, or NaN if the state is not in the table
+     */
+    public double getWinRate(long hash, int virtualLoss) {
+        long key = key(hash);
+        int slot = find(key, bucket(key));
+        if (slot < 0) {
+            return Double.NaN;
+        }
+        long packed = stats.get(slot);
+        if (keys.get(slot) != key) {
+            // Replaced by another state while reading
+            return Double.NaN;
+        }
+        int plays = (int) (packed >>> 32);
+        int wins = (int) packed;
+        if (plays + virtualLoss == 0) {
+            return Double.NaN;
+        }
+        return (double) wins / (plays + virtualLoss);
+    }
+
+    /**
+     * Gets the number of states stored.
+     * @return Number of occupied slots
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Removes all states. Must not be called while other threads use the table.
+     */
+    public void clear() {
+        for (int i = 0; i < keys.length(); i++) {
+            keys.set(i, EMPTY);
+            stats.set(i, 0L);
+        }
+        size.set(0);
+    }
+
+    private int find(long key, int first) {
+        if (keys.get(first) == key) {
+            return first;
+        }
+        if (keys.get(first + 1) == key) {
+            return first + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a slot of the bucket for a new state. Must be called holding the lock of its stripe.
+     */
+    private int replace(long key, int first) {
+        int slot;
+        if (keys.get(first) == EMPTY) {
+            slot = first;
+        } else if (keys.get(first + 1) == EMPTY) {
+            slot = first + 1;
+        } else {
+            slot = stats.get(first) >>> 32 <= stats.get(first + 1) >>> 32 ? first : first + 1;
+            size.decrementAndGet();
+        }
+        // Reset the statistics first, so a concurrent lookup never sees the new key with old statistics
+        stats.set(slot, 0L);
+        keys.set(slot, key);
+        size.incrementAndGet();
+        return slot;
+    }
+
+    private static long key(long hash) {
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private int bucket(long key) {
+        return (int) (key ^ (key >>> 32)) & mask & ~1;
+    }
+}
@@ -0,0 +1,120 @@
+package highroller.agents;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class BattleOutcomeTableTest {
+
+    private static final double EPSILON = 1e-12;
+    private static final int REFERENCE_TROOPS = 8;
+
+    @Test
+    public void roundProbabilitiesMatchKnownOdds() {
+        BattleOutcomeTable table = BattleOutcomeTable.getDefault();
+        // 3 attacker dice against 2 defender dice, out of 6^5 rolls
+        assertEquals("3v2, defender loses two", 2890.0 / 7776, table.getRoundProbability(3, 2, 0), EPSILON);
+        assertEquals("3v2, one each", 2611.0 / 7776, table.getRoundProbability(3, 2, 1), EPSILON);
+        assertEquals("3v2, attacker loses two", 2275.0 / 7776, table.getRoundProbability(3, 2, 2), EPSILON);
+        // 2 against 2, out of 6^4 rolls
+        assertEquals("2v2, defender loses two", 295.0 / 1296, table.getRoundProbability(2, 2, 0), EPSILON);
+        assertEquals("2v2, one each", 420.0 / 1296, table.getRoundProbability(2, 2, 1), EPSILON);
+        assertEquals("2v2, attacker loses two", 581.0 / 1296, table.getRoundProbability(2, 2, 2), EPSILON);
+        // 1 against 2, out of 6^3 rolls
+        assertEquals("1v2, defender loses one", 55.0 / 216, table.getRoundProbability(1, 2, 0), EPSILON);
+        assertEquals("1v2, attacker loses one", 161.0 / 216, table.getRoundProbability(1, 2, 1), EPSILON);
+    }
+
+    @Test
+    public void battlesMatchBruteForce() {
+        for (int maxAttackerDice = 1; maxAttackerDice <= 3; maxAttackerDice++) {
+            for (int maxDefenderDice = 1; maxDefenderDice <= 2; maxDefenderDice++) {
+                BattleOutcomeTable table = BattleOutcomeTable.of(maxAttackerDice, maxDefenderDice);
+                Map<Integer, double[]> battles = new HashMap<>();
+                for (int a = 0; a <= REFERENCE_TROOPS; a++) {
+                    for (int d = 0; d <= REFERENCE_TROOPS; d++) {
+                        double[] expected = bruteForce(a, d, maxAttackerDice, maxDefenderDice, battles);
+                        String battle = a + " against " + d + " with " + maxAttackerDice + "v" + maxDefenderDice + " dice";
+                        assertEquals("Win probability of " + battle, expected[0], table.getWinProbability(a, d), EPSILON);
+                        assertEquals("Attacker losses of " + battle, expected[1], table.getExpectedAttackerLosses(a, d), EPSILON);
+                        assertEquals("Defender losses of " + battle, expected[2], table.getExpectedDefenderLosses(a, d), EPSILON);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void largerBattlesAreScaledDown() {
+        BattleOutcomeTable table = BattleOutcomeTable.getDefault();
+        int max = BattleOutcomeTable.MAX_TROOPS;
+        // The last exact entry and the first scaled one keep the same ratio
+        assertEquals("Win probability across the table boundary", table.getWinProbability(max, max / 2),
+                table.getWinProbability(max + 1, (max + 1) / 2), EPSILON);
+        assertEquals("Win probability at twice the table size", table.getWinProbability(max, max / 2),
+                table.getWinProbability(2 * max, max), EPSILON);
+        assertEquals("Attacker losses at twice the table size", 2 * table.getExpectedAttackerLosses(max, max / 2),
+                table.getExpectedAttackerLosses(2 * max, max), EPSILON);
+        assertEquals("Defender losses at twice the table size", 2 * table.getExpectedDefenderLosses(max / 2, max),
+                table.getExpectedDefenderLosses(max, 2 * max), EPSILON);
+        // Neither side is scaled down to nothing
+        assertEquals("Overwhelmed attacker", table.getWinProbability(1, max),
+                table.getWinProbability(1, 4 * max), EPSILON);
+    }
+
+    /**
+     * Fights a battle to the end by enumerating the dice of every round.
+     * @return Win probability, expected attacker losses and expected defender losses
+     */
+    private static double[] bruteForce(int attackingTroops, int defendingTroops, int maxAttackerDice, int maxDefenderDice,
+                                       Map<Integer, double[]> battles) {
+        int battle = attackingTroops * (REFERENCE_TROOPS + 1) + defendingTroops;
+        double[] known = battles.get(battle);
+        if (known != null) {
+            return known;
+        }
+        if (defendingTroops == 0) {
+            return new double[] {1, 0, 0};
+        }
+        if (attackingTroops == 0) {
+            return new double[] {0, 0, 0};
+        }
+        int attackerDice = Math.min(attackingTroops, maxAttackerDice);
+        int defenderDice = Math.min(defendingTroops, maxDefenderDice);
+        int[] dice = new int[attackerDice + defenderDice];
+        double[] result = new double[3];
+        double rolls = Math.pow(6, dice.length);
+        while (true) {
+            int[] attacker = Arrays.copyOfRange(dice, 0, attackerDice);
+            int[] defender = Arrays.copyOfRange(dice, attackerDice, dice.length);
+            Arrays.sort(attacker);
+            Arrays.sort(defender);
+            int attackerLosses = 0;
+            int defenderLosses = 0;
+            for (int i = 1; i <= Math.min(attackerDice, defenderDice); i++) {
+                if (attacker[attackerDice - i] > defender[defenderDice - i]) {
+                    defenderLosses++;
+                } else {
+                    attackerLosses++;
+                }
+            }
+            double[] rest = bruteForce(attackingTroops - attackerLosses, defendingTroops - defenderLosses,
+                    maxAttackerDice, maxDefenderDice, battles);
+            result[0] += rest[0] / rolls;
+            result[1] += (attackerLosses + rest[1]) / rolls;
+            result[2] += (defenderLosses + rest[2]) / rolls;
+            int i = 0;
+            while (i < dice.length && ++dice[i] == 6) {
+                dice[i++] = 0;
+            }
+            if (i == dice.length) {
+                battles.put(battle, result);
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package highroller.agents;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluationCacheTest {
+
+    @Test
+    public void countsHitsAndMisses() {
+        EvaluationCache cache = new EvaluationCache(1 << 10);
+        assertTrue("Empty cache returned a score", Float.isNaN(cache.get(42)));
+        cache.put(42, 0.5f);
+        cache.put(0, 0.25f);
+        assertEquals("Stored score", 0.5f, cache.get(42), 0.0);
+        assertEquals("Score of the zero hash", 0.25f, cache.get(0), 0.0);
+        assertTrue("Unknown state returned a score", Float.isNaN(cache.get(43)));
+        cache.put(42, 0.75f);
+        assertEquals("Overwritten score", 0.75f, cache.get(42), 0.0);
+        assertEquals("Size", 2, cache.size());
+        assertEquals("Hits", 3, cache.getHits());
+        assertEquals("Misses", 2, cache.getMisses());
+
+        cache.clear();
+        assertEquals("Size after clear", 0, cache.size());
+        assertEquals("Hits after clear", 0, cache.getHits());
+        assertEquals("Misses after clear", 0, cache.getMisses());
+        assertTrue("Cleared state returned a score", Float.isNaN(cache.get(42)));
+    }
+
+    @Test
+    public void evictsUnreadStatesFirst() {
+        // A single set, so every state competes for the same slots
+        EvaluationCache cache = new EvaluationCache(EvaluationCache.WAYS);
+        for (int i = 1; i <= EvaluationCache.WAYS; i++) {
+            cache.put(i, i);
+        }
+        // Read the first half, the clock gives them a second chance
+        for (int i = 1; i <= EvaluationCache.WAYS / 2; i++) {
+            assertEquals("Score of state " + i, i, cache.get(i), 0.0);
+        }
+        cache.put(100, 100);
+        int firstUnread = EvaluationCache.WAYS / 2 + 1;
+        assertTrue("The first unread state was kept", Float.isNaN(cache.get(firstUnread)));
+        for (int i = 1; i < firstUnread; i++) {
+            assertEquals("Read state " + i + " was evicted", i, cache.get(i), 0.0);
+        }
+        assertEquals("New state", 100, cache.get(100), 0.0);
+        assertEquals("Size of a full cache", EvaluationCache.WAYS, cache.size());
+
+        // The hand moved on past the replaced slot, so the next unread state goes next
+        cache.put(101, 101);
+        assertTrue("The next unread state was kept", Float.isNaN(cache.get(firstUnread + 1)));
+        assertEquals("New state", 101, cache.get(101), 0.0);
+    }
+}
@@ -0,0 +1,87 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RiskMetricsCalculatorTest {
+
+    private static final String BOARD = "boards/risk_default.yaml";
+    private static final int MAX_ACTIONS = 1000;
+
+    @Test
+    public void deriveMatchesFreshCalculator() throws IOException {
+        int fortifies = 0;
+        int occupies = 0;
+        int fullRecomputations = 0;
+        for (int players = 2; players <= 3; players++) {
+            Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), players);
+            Random random = new Random(players);
+            for (int i = 0; i < MAX_ACTIONS && !game.isGameOver(); i++) {
+                if (game.getCurrentPlayer() >= 0) {
+                    RiskBoard board = game.getBoard();
+                    for (int player = 0; player < players; player++) {
+                        RiskMetricsCalculator parent = new RiskMetricsCalculator(board, player);
+                        // The search derives from evaluated calculators, whose attack potentials are reused
+                        RiskMetricsCalculator evaluatedParent = new RiskMetricsCalculator(board, player);
+                        evaluatedParent.getGameStateScore();
+                        for (RiskAction action : game.getPossibleActions()) {
+                            Risk next = (Risk) game.doAction(action);
+                            RiskBoard nextBoard = next.getBoard();
+                            int[] affectedTerritories = RiskActionDelta.affectedTerritories(game, board, action);
+                            RiskMetricsCalculator fresh = new RiskMetricsCalculator(nextBoard, player);
+                            String context = action + " for player " + player + " on " + board;
+                            assertSameMetrics(context, fresh, parent.derive(nextBoard, affectedTerritories), nextBoard);
+                            assertSameMetrics(context, fresh, evaluatedParent.derive(nextBoard, affectedTerritories), nextBoard);
+                            if (player == 0) {
+                                fortifies += board.isFortifyPhase() ? 1 : 0;
+                                occupies += board.isOccupyPhase() ? 1 : 0;
+                                fullRecomputations += affectedTerritories == null ? 1 : 0;
+                            }
+                        }
+                    }
+                }
+                game = (Risk) game.doAction(nextAction(game, random));
+            }
+        }
+        assertTrue("No fortify was derived", fortifies > 0);
+        assertTrue("No occupy after a conquest was derived", occupies > 0);
+        assertTrue("No card trade-in or bonus fell back to a full recomputation", fullRecomputations > 0);
+    }
+
+    private static void assertSameMetrics(String context, RiskMetricsCalculator expected, RiskMetricsCalculator actual,
+                                          RiskBoard board) {
+        assertEquals("Territory count after " + context, expected.getTerritoryCount(), actual.getTerritoryCount());
+        assertEquals("Game troops after " + context, expected.getTotalGameTroops(), actual.getTotalGameTroops());
+        assertEquals("Troop strength after " + context, expected.getTotalTroopStrength(), actual.getTotalTroopStrength());
+        for (int territoryId : board.getTerritories().keySet()) {
+            assertEquals("Attack potential of " + territoryId + " after " + context,
+                    expected.getAttackPotential(territoryId), actual.getAttackPotential(territoryId), 0.0);
+        }
+        assertEquals("Overall attack potential after " + context,
+                expected.getOverallAttackPotential(), actual.getOverallAttackPotential(), 0.0);
+        assertEquals("Border strength after " + context, expected.getBorderStrength(), actual.getBorderStrength());
+        assertEquals("Threat level after " + context, expected.getThreatLevel(), actual.getThreatLevel());
+        assertEquals("Game state score after " + context,
+                expected.getGameStateScore(), actual.getGameStateScore(), 0.0);
+    }
+
+    private static RiskAction nextAction(Risk game, Random random) {
+        if (game.getCurrentPlayer() < 0) {
+            return game.determineNextAction();
+        }
+        List<RiskAction> actions = new ArrayList<>(game.getPossibleActions());
+        return actions.get(random.nextInt(actions.size()));
+    }
+}
@@ -0,0 +1,188 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RiskPlayoutBoardTest {
+
+    private static final String BOARD = "boards/risk_default.yaml";
+    private static final int MAX_ACTIONS = 3000;
+    private static final int PLAYOUT_INTERVAL = 25;
+    private static final int MAX_PLAYOUT_MOVES = 200_000;
+
+    @Test
+    public void loadCopiesTheEngineState() throws IOException {
+        Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), 3);
+        RiskPlayoutBoard playoutBoard = new RiskPlayoutBoard(game.getBoard());
+        Random random = new Random(1);
+        assertFalse("The initial selection was loaded", playoutBoard.load(game, game.getBoard()));
+        int loaded = 0;
+        for (int i = 0; i < MAX_ACTIONS && !game.isGameOver(); i++) {
+            RiskBoard board = game.getBoard();
+            if (playoutBoard.load(game, board)) {
+                assertEquals("Current player", game.getCurrentPlayer(), playoutBoard.getCurrentPlayer());
+                assertEquals("Phase", RiskZobrist.phaseOf(board), playoutBoard.getPhase());
+                for (int territory : board.getTerritories().keySet()) {
+                    assertEquals("Owner of " + territory, board.getTerritoryOccupantId(territory),
+                            playoutBoard.getTerritoryOccupantId(territory));
+                    assertEquals("Troops of " + territory, board.getTerritoryTroops(territory),
+                            playoutBoard.getTerritoryTroops(territory));
+                }
+                for (int player = 0; player < game.getNumberOfPlayers(); player++) {
+                    assertEquals("Cards of " + player, board.getPlayerCards(player).size(), playoutBoard.getNumberOfCards(player));
+                }
+                if (board.isReinforcementPhase()) {
+                    // The engine holds back the bonus for each traded-in territory until it is placed
+                    int held = playoutBoard.getReinforcementsLeft() - maxTroops(game);
+                    assertTrue("Reinforcements held back", held >= 0 && held % board.getTradeInTerritoryBonus() == 0);
+                }
+                if (board.isOccupyPhase()) {
+                    assertEquals("Most troops to occupy with", maxTroops(game), playoutBoard.getMaxOccupy());
+                }
+                loaded++;
+            }
+            game = (Risk) game.doAction(nextAction(game, random));
+        }
+        assertTrue("No state was loaded", loaded > 0);
+    }
+
+    @Test
+    public void playoutsFollowTheSimplifiedRules() throws IOException {
+        for (int players = 2; players <= 4; players++) {
+            Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), players);
+            RiskPlayoutBoard playoutBoard = new RiskPlayoutBoard(game.getBoard());
+            RiskTopology topology = RiskTopology.of(game.getBoard());
+            Random random = new Random(players);
+            int playouts = 0;
+            for (int i = 0; i < MAX_ACTIONS && !game.isGameOver(); i++) {
+                if (i % PLAYOUT_INTERVAL == 0 && playoutBoard.load(game, game.getBoard())) {
+                    playout(playoutBoard, topology, players, random);
+                    playouts++;
+                }
+                game = (Risk) game.doAction(nextAction(game, random));
+            }
+            assertTrue("No playout ran with " + players + " players", playouts > 0);
+        }
+    }
+
+    /**
+     * Plays a playout to the end, checking the board after every move and the turn rules at every turn change.
+     */
+    private static void playout(RiskPlayoutBoard board, RiskTopology topology, int players, Random random) {
+        int player = board.getCurrentPlayer();
+        boolean conquered = board.getPhase() == RiskPlayoutBoard.OCCUPY;
+        int[] cards = new int[players];
+        for (int moves = 0; !board.isGameOver(); moves++) {
+            assertTrue("Playout did not end", moves < MAX_PLAYOUT_MOVES);
+            for (int p = 0; p < players; p++) {
+                cards[p] = board.getNumberOfCards(p);
+            }
+            int territories = board.getNrOfTerritoriesOccupiedByPlayer(player);
+            board.playRandomMove(random);
+            assertConsistent(board, players);
+            conquered |= board.getNrOfTerritoriesOccupiedByPlayer(player) > territories;
+            int next = board.getCurrentPlayer();
+            if (next == player) {
+                continue;
+            }
+            assertTrue("Turn ended during " + board.getPhase(), board.getPhase() == RiskPlayoutBoard.REINFORCE);
+            // A conquest earns one card at the end of the turn
+            assertEquals("Cards of " + player + " after the turn", cards[player] + (conquered ? 1 : 0),
+                    board.getNumberOfCards(player));
+            assertTrue("Eliminated player " + next + " got a turn", board.getNrOfTerritoriesOccupiedByPlayer(next) > 0);
+            // Three cards are traded in for a fixed bonus whenever the next player holds enough
+            boolean tradedIn = cards[next] >= 3;
+            assertEquals("Cards of " + next + " after the trade-in", cards[next] - (tradedIn ? 3 : 0),
+                    board.getNumberOfCards(next));
+            assertEquals("Reinforcements of " + next, expectedReinforcements(board, topology, next) + (tradedIn ? 6 : 0),
+                    board.getReinforcementsLeft());
+            player = next;
+            conquered = false;
+        }
+        int winner = -1;
+        for (int p = 0; p < players; p++) {
+            if (board.getNrOfTerritoriesOccupiedByPlayer(p) > 0) {
+                assertEquals("Second player left at the end", -1, winner);
+                winner = p;
+            }
+        }
+        assertEquals("Territories of the winner", board.getNumberOfTerritories(), board.getNrOfTerritoriesOccupiedByPlayer(winner));
+        for (int p = 0; p < players; p++) {
+            assertEquals("Score of " + p, p == winner ? 1.0 : 0.0, board.getScore(p), 0.0);
+        }
+    }
+
+    private static void assertConsistent(RiskPlayoutBoard board, int players) {
+        int[] territories = new int[players];
+        int empty = 0;
+        for (int territory = 0; territory < board.getNumberOfTerritories(); territory++) {
+            int owner = board.getTerritoryOccupantId(territory);
+            assertTrue("Owner of " + territory, owner >= 0 && owner < players);
+            territories[owner]++;
+            assertTrue("Troops of " + territory, board.getTerritoryTroops(territory) >= 0);
+            empty += board.getTerritoryTroops(territory) == 0 ? 1 : 0;
+        }
+        // Only the territory just conquered waits for troops to occupy it
+        assertTrue("Empty territories outside of an occupation",
+                empty <= (board.getPhase() == RiskPlayoutBoard.OCCUPY ? 1 : 0));
+        for (int p = 0; p < players; p++) {
+            assertEquals("Territory count of " + p, territories[p], board.getNrOfTerritoriesOccupiedByPlayer(p));
+        }
+        if (board.getPhase() == RiskPlayoutBoard.REINFORCE) {
+            assertTrue("Reinforcement phase without reinforcements", board.getReinforcementsLeft() > 0);
+        }
+        if (board.getPhase() == RiskPlayoutBoard.OCCUPY) {
+            assertTrue("Occupation without troops to move", board.getMinOccupy() <= board.getMaxOccupy());
+        }
+    }
+
+    /**
+     * Reinforcements at the start of a turn before any trade-in: max(3, territories / 3) and continent bonuses.
+     */
+    private static int expectedReinforcements(RiskPlayoutBoard board, RiskTopology topology, int player) {
+        int reinforcements = Math.max(3, board.getNrOfTerritoriesOccupiedByPlayer(player) / 3);
+        for (int continent = 0; continent < topology.getNumberOfContinents(); continent++) {
+            int owned = 0;
+            for (int territory = 0; territory < board.getNumberOfTerritories(); territory++) {
+                if (topology.continentOf(territory) == continent && board.getTerritoryOccupantId(territory) == player) {
+                    owned++;
+                }
+            }
+            if (owned == topology.getContinentSize(continent)) {
+                reinforcements += topology.getContinentBonus(continent);
+            }
+        }
+        return reinforcements;
+    }
+
+    private static int maxTroops(Risk game) {
+        int max = 0;
+        for (RiskAction action : game.getPossibleActions()) {
+            if (!action.isCardIds() && !action.isBonus() && !action.isEndPhase()) {
+                max = Math.max(max, action.troops());
+            }
+        }
+        return max;
+    }
+
+    private static RiskAction nextAction(Risk game, Random random) {
+        if (game.getCurrentPlayer() < 0) {
+            return game.determineNextAction();
+        }
+        List<RiskAction> actions = new ArrayList<>(game.getPossibleActions());
+        return actions.get(random.nextInt(actions.size()));
+    }
+}
@@ -0,0 +1,112 @@
+package highroller.agents;
+
+import at.ac.tuwien.ifs.sge.game.risk.board.Risk;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskAction;
+import at.ac.tuwien.ifs.sge.game.risk.board.RiskBoard;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RiskZobristTest {
+
+    private static final String BOARD = "boards/risk_default.yaml";
+    private static final int MAX_ACTIONS = 3000;
+
+    @Test
+    public void attackChildrenHaveDistinctHashes() throws IOException {
+        Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), 2);
+        Random random = new Random(1);
+        int attackStates = 0;
+        for (int i = 0; i < MAX_ACTIONS && !game.isGameOver(); i++) {
+            if (game.getCurrentPlayer() >= 0 && game.getBoard().isAttackPhase()) {
+                Set<RiskAction> actions = game.getPossibleActions();
+                Set<Long> hashes = new HashSet<>();
+                for (RiskAction action : actions) {
+                    hashes.add(RiskZobrist.hash((Risk) game.doAction(action)));
+                }
+                assertEquals("Children of " + game.getBoard() + " share a hash", actions.size(), hashes.size());
+                attackStates++;
+            }
+            game = (Risk) game.doAction(nextAction(game, random));
+        }
+        assertTrue("No attack phase was reached", attackStates > 0);
+    }
+
+    @Test
+    public void updateMatchesHashFromScratch() throws IOException {
+        Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), 3);
+        Random random = new Random(2);
+        long hash = RiskZobrist.hash(game);
+        for (int i = 0; i < MAX_ACTIONS && !game.isGameOver(); i++) {
+            RiskAction action = nextAction(game, random);
+            Risk next = (Risk) game.doAction(action);
+            long updated = RiskZobrist.update(hash, game.getBoard(), game.getCurrentPlayer(), next.getBoard(),
+                    next.getCurrentPlayer(), RiskActionDelta.affectedTerritories(game, game.getBoard(), action));
+            hash = RiskZobrist.hash(next);
+            assertEquals("Derived hash differs after " + action, hash, updated);
+            game = next;
+        }
+    }
+
+    @Test
+    public void turnStateChangesTheHash() throws Exception {
+        Risk game = new Risk(new String(Files.readAllBytes(Paths.get(BOARD))), 2);
+        RiskBoard board = game.getBoard();
+        int player = game.getCurrentPlayer();
+        long hash = RiskZobrist.hash(board, player);
+
+        VarHandle hasOccupiedCountry = boardField("hasOccupiedCountry", boolean.class);
+        hasOccupiedCountry.set(board, !(boolean) hasOccupiedCountry.get(board));
+        hash = assertHashChanged("hasOccupiedCountry", board, player, hash);
+
+        VarHandle tradedInId = boardField("tradedInId", int.class);
+        tradedInId.set(board, (int) tradedInId.get(board) + 1);
+        hash = assertHashChanged("tradedInId", board, player, hash);
+
+        @SuppressWarnings("unchecked")
+        Map<Integer, Integer> involvedTroops = (Map<Integer, Integer>) boardField("involvedTroopsInAttacks", Map.class).get(board);
+        involvedTroops.put(0, 2);
+        hash = assertHashChanged("involvedTroopsInAttacks", board, player, hash);
+        involvedTroops.put(0, 3);
+        hash = assertHashChanged("involvedTroopsInAttacks", board, player, hash);
+
+        @SuppressWarnings("unchecked")
+        Set<Integer> reinforced = (Set<Integer>) boardField("reinforcedTerritories", Set.class).get(board);
+        reinforced.add(0);
+        hash = assertHashChanged("reinforcedTerritories", board, player, hash);
+        reinforced.add(1);
+        assertHashChanged("reinforcedTerritories", board, player, hash);
+    }
+
+    private static long assertHashChanged(String field, RiskBoard board, int player, long previous) {
+        long hash = RiskZobrist.hash(board, player);
+        assertTrue("Changing " + field + " kept the hash", hash != previous);
+        return hash;
+    }
+
+    private static VarHandle boardField(String name, Class<?> type) throws ReflectiveOperationException {
+        return MethodHandles.privateLookupIn(RiskBoard.class, MethodHandles.lookup())
+                .findVarHandle(RiskBoard.class, name, type);
+    }
+
+    private static RiskAction nextAction(Risk game, Random random) {
+        if (game.getCurrentPlayer() < 0) {
+            return game.determineNextAction();
+        }
+        List<RiskAction> actions = new ArrayList<>(game.getPossibleActions());
+        return actions.get(random.nextInt(actions.size()));
+    }
+}
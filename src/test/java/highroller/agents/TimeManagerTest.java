@@ -0,0 +1,80 @@
+package highroller.agents;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeManagerTest {
+
+    private static final long ELAPSED = TimeUnit.SECONDS.toNanos(1);
+    private static final long REMAINING = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void widenedRootWithOneChildIsNotDecided() {
+        TimeManager timeManager = new TimeManager();
+        List<HrGameNode<Integer>> children = Collections.singletonList(child(0, 1000));
+        assertFalse("A single child of a widened root counted as decided",
+                timeManager.isDecided(children, 10, Collections.emptyMap(), ELAPSED, REMAINING));
+    }
+
+    @Test
+    public void partiallyExpandedRootIsNotDecided() {
+        TimeManager timeManager = new TimeManager();
+        List<HrGameNode<Integer>> children = Arrays.asList(child(0, 1000), child(1, 1));
+        assertFalse("A root with unexpanded actions counted as decided",
+                timeManager.isDecided(children, 3, Collections.emptyMap(), ELAPSED, REMAINING));
+        assertTrue("A clear lead at a fully expanded root did not count as decided",
+                timeManager.isDecided(children, 2, Collections.emptyMap(), ELAPSED, REMAINING));
+    }
+
+    @Test
+    public void reusedPlaysDoNotDecide() {
+        TimeManager timeManager = new TimeManager();
+        List<HrGameNode<Integer>> children = Arrays.asList(child(0, 1010), child(1, 10));
+        Map<List<Integer>, HrGameNode<Integer>> searchStart = Collections.singletonMap(Collections.singletonList(0), child(0, 1000));
+        assertFalse("Plays from before the search counted towards the lead",
+                timeManager.isDecided(children, 2, searchStart, ELAPSED, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void separatedIntervalsDecide() {
+        TimeManager timeManager = new TimeManager();
+        timeManager.setStopRule(TimeManager.StopRule.CONFIDENCE_INTERVAL);
+        List<HrGameNode<Integer>> children = Arrays.asList(child(0, 1000, 900), child(1, 1000, 100));
+        assertTrue("Separated intervals did not count as decided",
+                timeManager.isDecided(children, 2, Collections.emptyMap(), ELAPSED, REMAINING));
+        assertFalse("A single child of a widened root counted as decided",
+                timeManager.isDecided(children.subList(0, 1), 2, Collections.emptyMap(), ELAPSED, REMAINING));
+    }
+
+    @Test
+    public void reusedStatisticsDoNotSeparateIntervals() {
+        TimeManager timeManager = new TimeManager();
+        timeManager.setStopRule(TimeManager.StopRule.CONFIDENCE_INTERVAL);
+        List<HrGameNode<Integer>> children = Arrays.asList(child(0, 1010, 905), child(1, 1010, 105));
+        Map<List<Integer>, HrGameNode<Integer>> searchStart = new HashMap<>();
+        searchStart.put(Collections.singletonList(0), child(0, 1000, 900));
+        searchStart.put(Collections.singletonList(1), child(1, 1000, 100));
+        assertFalse("Statistics from before the search separated the intervals",
+                timeManager.isDecided(children, 2, searchStart, ELAPSED, REMAINING));
+    }
+
+    private static HrGameNode<Integer> child(int action, int plays) {
+        return child(action, plays, plays / 2);
+    }
+
+    private static HrGameNode<Integer> child(int action, int plays, int wins) {
+        HrGameNode<Integer> node = new HrGameNode<>(action, 0, Double.NaN);
+        node.setPlays(plays);
+        node.setWins(wins);
+        return node;
+    }
+}